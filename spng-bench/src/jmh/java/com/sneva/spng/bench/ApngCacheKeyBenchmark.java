@@ -0,0 +1,49 @@
+package com.sneva.spng.bench;
+
+import com.sneva.spng.assist.ApngCacheKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Naming the working dir copy of an image, done on every load, and hashing its content once it is copied.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ApngCacheKeyBenchmark {
+
+    private final String[] uris = {
+            "https://example.com/images/animated/loading-spinner.png",
+            "file:///sdcard/Pictures/apng/sticker_0042.png",
+            "assets://emoji/party_parrot.png",
+    };
+    private int next;
+
+    @Benchmark
+    public String getFileName() {
+        String uri = uris[next];
+        next = (next + 1) % uris.length;
+        return ApngCacheKey.getFileName(uri);
+    }
+
+    /** The hash alone, as paid when the name is not cached */
+    @Benchmark
+    public long hashUri() {
+        String uri = uris[next];
+        next = (next + 1) % uris.length;
+        return ApngCacheKey.hash(uri);
+    }
+
+    @Benchmark
+    public long hashFile(CorpusState corpus) throws IOException {
+        return ApngCacheKey.hashFile(corpus.file);
+    }
+}
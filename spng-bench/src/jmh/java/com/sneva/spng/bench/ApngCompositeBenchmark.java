@@ -0,0 +1,102 @@
+package com.sneva.spng.bench;
+
+import com.sneva.spng.assist.ApngCanvas;
+import com.sneva.spng.assist.ApngFrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * Decoding frames and applying their blend and dispose operations, the work done per frame during playback.
+ * The per-frame benchmarks move to the next frame of the loop on every call and report latency percentiles.
+ */
+public class ApngCompositeBenchmark {
+
+    @State(Scope.Thread)
+    public static class Playback {
+        ApngFrameDecoder decoder;
+        ApngCanvas canvas;
+        List<PngChunkFCTL> fctlList;
+        int[] framePixels;
+        int frameIndex;
+
+        @Setup(Level.Trial)
+        public void setUp(CorpusState corpus) throws IOException {
+            decoder = new ApngFrameDecoder(corpus.file);
+            canvas = new ApngCanvas(decoder.getImageInfo().cols, decoder.getImageInfo().rows, 1);
+            fctlList = decoder.getFctlList();
+            framePixels = new int[decoder.getImageInfo().cols * decoder.getImageInfo().rows];
+            frameIndex = 0;
+        }
+
+        int nextFrame() {
+            int frame = frameIndex;
+            frameIndex = (frameIndex + 1) % fctlList.size();
+            return frame;
+        }
+
+        void compose(int frame) {
+            if (frame == 0) canvas.reset();
+            canvas.compose(frame == 0 ? null : fctlList.get(frame - 1), fctlList.get(frame), framePixels, 1);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int[] decodeFrame(Playback playback) throws IOException {
+        playback.decoder.decodeFrame(playback.nextFrame(), playback.framePixels);
+        return playback.framePixels;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int[] composeFrame(Playback playback) throws IOException {
+        int frame = playback.nextFrame();
+        playback.decoder.decodeFrame(frame, playback.framePixels);
+        playback.compose(frame);
+        return playback.canvas.getPixels();
+    }
+
+    /**
+     * A whole loop decoded by a new decoder, as when an animation is played again after being evicted. With the
+     * gc profiler, gc.alloc.rate.norm shows what decoding allocates besides the decoder itself.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int[] decodeAnimation(Playback playback, CorpusState corpus) throws IOException {
+        ApngFrameDecoder decoder = new ApngFrameDecoder(corpus.file, playback.decoder.getIndex());
+        for (int frame = 0; frame < playback.fctlList.size(); frame++) {
+            decoder.decodeFrame(frame, playback.framePixels);
+        }
+        return playback.framePixels;
+    }
+
+    /**
+     * A whole loop of the animation.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int[] composeAnimation(Playback playback) throws IOException {
+        for (int frame = 0; frame < playback.fctlList.size(); frame++) {
+            playback.decoder.decodeFrame(frame, playback.framePixels);
+            playback.compose(frame);
+        }
+        return playback.canvas.getPixels();
+    }
+}
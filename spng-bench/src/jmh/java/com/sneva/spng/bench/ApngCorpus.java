@@ -0,0 +1,137 @@
+package com.sneva.spng.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the APNGs the benchmarks run on: RGBA animations of a given frame count and canvas size, either made of
+ * full canvas frames or of a mix of sub-frames, dispose and blend operations. The content is pseudo random with
+ * a fixed seed, smooth enough for the compression level to matter.
+ */
+public class ApngCorpus {
+
+    public enum Ops {
+        /** Full canvas frames, APNG_DISPOSE_OP_NONE, APNG_BLEND_OP_SOURCE */
+        FULL_SOURCE,
+        /** Sub-frames cycling through every dispose operation, half of them blended OVER the canvas */
+        MIXED
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final long SEED = 0x5EEDL;
+
+    private ApngCorpus() {
+
+    }
+
+    /**
+     * Name of the file {@link #write(File, int, int, Ops, int)} writes for these parameters.
+     */
+    public static String getFileName(int frames, int size, Ops ops, int level) {
+        return "corpus-" + frames + "-" + size + "-" + ops.name().toLowerCase() + "-" + level + ".png";
+    }
+
+    /**
+     * @param frames number of frames, the first one being the default image
+     * @param size   width and height of the canvas
+     * @param level  deflate level of the image data
+     */
+    public static File write(File dir, int frames, int size, Ops ops, int level) throws IOException {
+        File file = new File(dir, getFileName(frames, size, ops, level));
+        Random random = new Random(SEED);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.write(SIGNATURE);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream chunk = new DataOutputStream(data);
+            chunk.writeInt(size);
+            chunk.writeInt(size);
+            chunk.write(new byte[]{8, 6, 0, 0, 0});
+            writeChunk(out, "IHDR", data);
+            chunk.writeInt(frames);
+            chunk.writeInt(0);
+            writeChunk(out, "acTL", data);
+            int sequence = 0;
+            for (int i = 0; i < frames; i++) {
+                boolean full = i == 0 || ops == Ops.FULL_SOURCE;
+                int width = full ? size : 1 + random.nextInt(size);
+                int height = full ? size : 1 + random.nextInt(size);
+                int x = full ? 0 : random.nextInt(size - width + 1);
+                int y = full ? 0 : random.nextInt(size - height + 1);
+                chunk.writeInt(sequence++);
+                chunk.writeInt(width);
+                chunk.writeInt(height);
+                chunk.writeInt(x);
+                chunk.writeInt(y);
+                chunk.writeShort(1);
+                chunk.writeShort(30);
+                chunk.writeByte(ops == Ops.FULL_SOURCE ? 0 : i % 3);
+                chunk.writeByte(ops == Ops.FULL_SOURCE ? 0 : i % 2);
+                writeChunk(out, "fcTL", data);
+                if (i > 0) chunk.writeInt(sequence++);
+                writeImageData(chunk, width, height, ops == Ops.MIXED, level, random);
+                writeChunk(out, i == 0 ? "IDAT" : "fdAT", data);
+            }
+            writeChunk(out, "IEND", data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void writeImageData(OutputStream out, int width, int height, boolean translucent, int level,
+                                       Random random) throws IOException {
+        Deflater deflater = new Deflater(level);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+        // A gradient with a random offset and noise in 8x8 blocks, rows filtered with Up as encoders would
+        int offset = random.nextInt(256);
+        int noise = 1 + random.nextInt(16);
+        int[] blocks = new int[(width + 7) / 8];
+        byte[] raw = new byte[width * 4];
+        byte[] previous = new byte[width * 4];
+        byte[] row = new byte[1 + width * 4];
+        row[0] = 2;
+        for (int y = 0; y < height; y++) {
+            if ((y & 7) == 0) {
+                for (int i = 0; i < blocks.length; i++) blocks[i] = random.nextInt(noise);
+            }
+            for (int x = 0; x < width; x++) {
+                int i = x * 4;
+                raw[i] = (byte) (x + offset + blocks[x / 8]);
+                raw[i + 1] = (byte) (y + offset);
+                raw[i + 2] = (byte) (x + y);
+                raw[i + 3] = (byte) (translucent ? 128 + (x & 127) : 255);
+            }
+            for (int i = 0; i < raw.length; i++) {
+                row[i + 1] = (byte) (raw[i] - previous[i]);
+            }
+            deflated.write(row);
+            byte[] swap = previous;
+            previous = raw;
+            raw = swap;
+        }
+        deflated.finish();
+        deflater.end();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, ByteArrayOutputStream data) throws IOException {
+        byte[] typeBytes = type.getBytes("ISO-8859-1");
+        byte[] bytes = data.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.write(typeBytes);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        data.reset();
+    }
+}
@@ -0,0 +1,23 @@
+package com.sneva.spng.bench;
+
+import com.sneva.spng.assist.ApngExtractFrames;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing every frame of an APNG to its own PNG file, as in the EXTRACT_FILES decode mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApngExtractBenchmark {
+
+    @Benchmark
+    public int process(CorpusState corpus) {
+        return ApngExtractFrames.process(corpus.file);
+    }
+}
@@ -0,0 +1,39 @@
+package com.sneva.spng.bench;
+
+import com.sneva.spng.assist.ApngIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the APNG information of a file: detection and the chunk scan shared by extraction and playback.
+ * The in-memory index cache is bypassed, every operation reads the file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApngIndexBenchmark {
+
+    @Benchmark
+    public ApngIndex scan(CorpusState corpus) throws IOException {
+        ApngIndex.evict(corpus.file);
+        return ApngIndex.get(corpus.file);
+    }
+
+    @Benchmark
+    public boolean isApng(CorpusState corpus) throws IOException {
+        ApngIndex.evict(corpus.file);
+        return ApngIndex.get(corpus.file).isApng();
+    }
+
+    /** Detection as done on every PNG load: chunk headers up to the first IDAT */
+    @Benchmark
+    public boolean sniffApng(CorpusState corpus) throws IOException {
+        ApngIndex.evict(corpus.file);
+        return ApngIndex.sniffApng(corpus.file);
+    }
+}
@@ -0,0 +1,46 @@
+package com.sneva.spng.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * One APNG of the {@link ApngCorpus}, written to a temporary dir for the whole trial.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+
+    @Param({"8", "64"})
+    public int frames;
+
+    @Param({"128", "512"})
+    public int size;
+
+    @Param({"FULL_SOURCE", "MIXED"})
+    public ApngCorpus.Ops ops;
+
+    @Param({"1", "9"})
+    public int level;
+
+    public File dir;
+    public File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("spng-bench").toFile();
+        file = ApngCorpus.write(dir, frames, size, ops, level);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+}
@@ -0,0 +1,125 @@
+package com.sneva.spng;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.net.Uri;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.sneva.spng.assist.ApngListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ticking an animation and drawing its frames happen on the main thread for every frame of every visible
+ * animation, and must not allocate once the frames have been composed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApngDrawableAllocationTest {
+
+    // 4 frames of 100ms, looping forever
+    private static final String ASSET = "animation.png";
+    private static final long FRAME_DELAY_MS = 100;
+    private static final int LOOP_COUNT = 3;
+    private static final int DRAWS_PER_FRAME = 4;
+
+    private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    private ApngDrawable drawable;
+    private Canvas canvas;
+    private int loops;
+    private int allocCount;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = instrumentation.getTargetContext();
+        ApngImageLoader.getInstance().init(context);
+        File file = new File(context.getCacheDir(), ASSET);
+        copyAsset(file);
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        assertNotNull(bitmap);
+        drawable = new ApngDrawable(context, bitmap, Uri.fromFile(file));
+        drawable.setBounds(0, 0, bitmap.getWidth() * 2, bitmap.getHeight() * 2);
+        drawable.setNumPlays(Integer.MAX_VALUE);
+        drawable.setApngListener(new ApngListener() {
+            @Override
+            public void onAnimationRepeat(ApngDrawable apngDrawable) {
+                loops++;
+            }
+        });
+        canvas = new Canvas(Bitmap.createBitmap(bitmap.getWidth() * 2, bitmap.getHeight() * 2, Bitmap.Config.ARGB_8888));
+    }
+
+    @After
+    public void tearDown() {
+        instrumentation.runOnMainSync(() -> drawable.stop());
+    }
+
+    private void copyAsset(File file) throws IOException {
+        InputStream in = instrumentation.getContext().getAssets().open(ASSET);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8 * 1024];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lets the clock tick the animation on the main thread while drawing it there a few times per frame.
+     */
+    private void play(int loopCount) throws InterruptedException {
+        int frames = loopCount * drawable.getNumFrames();
+        for (int i = 0; i < frames * DRAWS_PER_FRAME; i++) {
+            Thread.sleep(FRAME_DELAY_MS / DRAWS_PER_FRAME);
+            instrumentation.runOnMainSync(() -> drawable.draw(canvas));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void playback_allocatesNothingOnTheMainThread() throws InterruptedException {
+        instrumentation.runOnMainSync(() -> drawable.start());
+        assertTrue(drawable.isRunning());
+        assertEquals(4, drawable.getNumFrames());
+        // The first loops compose the frames into the cache and size the reused buffers
+        play(LOOP_COUNT);
+        int warmUpLoops = loops;
+        assertTrue(warmUpLoops > 0);
+
+        instrumentation.runOnMainSync(() -> {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+        });
+        play(LOOP_COUNT);
+        instrumentation.runOnMainSync(() -> {
+            Debug.stopAllocCounting();
+            allocCount = Debug.getThreadAllocCount();
+        });
+        assertTrue("Not played while counting", loops > warmUpLoops);
+        assertEquals(0, allocCount);
+    }
+}
@@ -0,0 +1,815 @@
+package com.sneva.spng;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.sneva.spng.assist.ApngDecodedCache;
+import com.sneva.spng.assist.ApngDiskCache;
+import com.sneva.spng.assist.ApngExtractFrames;
+import com.sneva.spng.assist.ApngFrameCache;
+import com.sneva.spng.assist.ApngFrameDecoder;
+import com.sneva.spng.assist.ApngIndex;
+import com.sneva.spng.assist.ApngTeeInputStream;
+import com.sneva.spng.assist.PngImageLoader;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.chunks.PngChunkACTL;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static com.sneva.spng.ApngImageLoader.enableDebugLog;
+import static com.sneva.spng.ApngImageLoader.enableDecodedFrameCache;
+import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
+
+/**
+ * Playback state of one APNG source, shared by every {@link ApngDrawable} showing it.
+ * Frames are decoded and composed once and ticked once by the shared {@link ApngClock}, however many
+ * drawables subscribe. The state is reference counted and released with its last drawable.
+ * All methods except the frame composition are called on the main thread.
+ * <p>
+ * Playback can start while the source is still being downloaded. Frames are then decoded from the partial
+ * copy, and when the next frame has not arrived yet the current one stays on screen until it has.
+ */
+class ApngAnimation {
+
+    private static final int PREFETCH_FRAMES = 3;
+    private static final int DOUBLE_BUFFERED_PREFETCH_FRAMES = 1;
+    private static final int CHECKPOINT_INTERVAL = 8;
+    private static final long DOWNLOAD_POLL_INTERVAL_NANOS = 200000000L;
+    // Shorter delays would have the clock skip through frames that are meant to be shown
+    private static final long MIN_FRAME_DELAY_NANOS = 10000000L;
+    // Larger animations are decoded every time rather than kept on disk
+    private static final long DECODED_CACHE_MAX_SIZE = 32 * 1024 * 1024;
+
+    private static final Map<String, ApngAnimation> sAnimations = new HashMap<>();
+
+    private final String key;
+    private final File baseFile;
+    private final Bitmap baseBitmap;
+    private final int sampleSize;
+    private final Bitmap.Config config;
+    private final ApngDrawable.DecodeMode decodeMode;
+    private final ApngDrawable.CompositeMode compositeMode;
+    // Read by the composing worker while frames may still be appended
+    private final List<PngChunkFCTL> fctlArrayList = new CopyOnWriteArrayList<>();
+    private final List<ApngDrawable> subscribers = new ArrayList<>();
+    // Subscribers that are not shown: while there are only those, the animation is suspended. Held weakly, as
+    // nothing tells a drawable that its detached host let go of it.
+    private final List<WeakReference<ApngDrawable>> pausedSubscribers = new ArrayList<>();
+    // Subscribers being called back, reused so that ticks allocate nothing
+    private ApngDrawable[] dispatching = new ApngDrawable[1];
+    private final Rect dirtyRegion = new Rect();
+    private boolean hasDirtyRegion;
+    private int refCount;
+    private int numFrames;
+    private int numPlays;
+    private DisplayImageOptions displayImageOptions;
+    private PngImageLoader imageLoader;
+    private volatile ApngFrameDecoder frameDecoder;
+    private int[] framePixels;
+    private ApngDecodedCache decodedFrames;
+    private volatile ApngDecodedCache.Writer decodedFramesWriter;
+    private ApngCompositor compositor;
+    private ApngFramePipeline framePipeline;
+    // Held by the worker while composing, so that trimMemory() does not take the buffers from under it
+    private final Object composeLock = new Object();
+    private Bitmap composedBitmap;
+    private Bitmap firstFrameBitmap;
+    private int composedFrame = -1;
+    private volatile ApngIndex index;
+    private int frameCapacity;
+    private long lastIndexRefresh;
+    // Presentation time of the next frame, on the System.nanoTime() time base of the clock
+    private long nextFrameTime;
+    private boolean suspended;
+    private long suspendTime;
+    private ApngFrameCache.Frames cachedFrames;
+    private boolean[] keepFrames;
+    private boolean[] checkpoints;
+    // Composed checkpoints, outside of the frame cache so that they are never evicted. Only used by the worker.
+    private Bitmap[] checkpointBitmaps;
+    private volatile boolean checkpointsBuilt;
+    private boolean seeking;
+    private Bitmap currentBitmap;
+    private int currentFrame = -1;
+    private int displayedFrame = -1;
+
+    private ApngAnimation(String key, File baseFile, Bitmap baseBitmap, int sampleSize, Bitmap.Config config,
+                          ApngDrawable.DecodeMode decodeMode, ApngDrawable.CompositeMode compositeMode) {
+        this.key = key;
+        this.baseFile = baseFile;
+        this.baseBitmap = baseBitmap;
+        this.sampleSize = sampleSize;
+        this.config = config;
+        this.decodeMode = decodeMode;
+        this.compositeMode = compositeMode;
+        currentBitmap = baseBitmap;
+    }
+
+    /**
+     * Returns the shared animation of a source, preparing it for the first caller.
+     * Every successful call has to be balanced by {@link #release()}.
+     *
+     * @param width  width the animation is shown at, or 0 to compose frames at full size
+     * @param height height the animation is shown at, or 0 to compose frames at full size
+     * @param config pixel format of the composed frames, or null to pick one from the image
+     */
+    static ApngAnimation acquire(File baseFile, Bitmap baseBitmap, int width, int height, Bitmap.Config config,
+                                 ApngDrawable.DecodeMode decodeMode, ApngDrawable.CompositeMode compositeMode) {
+        int sampleSize = getSampleSize(baseFile, width, height);
+        config = getBitmapConfig(baseFile, config);
+        String key = baseFile.getAbsolutePath() + "#" + sampleSize + "#" + config + "#" + decodeMode + "#" + compositeMode;
+        releaseOrphans();
+        ApngAnimation animation = sAnimations.get(key);
+        if (animation == null) {
+            if (enableVerboseLog) Slogger.v("Prepare");
+            animation = new ApngAnimation(key, baseFile, baseBitmap, sampleSize, config, decodeMode, compositeMode);
+            if (!animation.prepare()) {
+                ApngDiskCache.get(baseFile.getParentFile()).unpin(baseFile);
+                return null;
+            }
+            sAnimations.put(key, animation);
+        }
+        animation.refCount++;
+        return animation;
+    }
+
+    /**
+     * The file to read a source from: the source itself, or while it is being downloaded the partial copy.
+     * Null if there is neither.
+     */
+    static File getSourceFile(File baseFile) {
+        // Looked up first, so that a copy moved in place meanwhile is still found under its final name
+        File partialFile = ApngTeeInputStream.getPartialFile(baseFile);
+        if (baseFile.exists()) return baseFile;
+        return partialFile;
+    }
+
+    /**
+     * Largest power of two the source can be downsampled by while staying at least as large as the given size.
+     */
+    static int getSampleSize(File baseFile, int width, int height) {
+        if (width <= 0 || height <= 0) return 1;
+        ImageInfo imageInfo;
+        try {
+            imageInfo = ApngIndex.get(getSourceFile(baseFile)).getImageInfo();
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+            return 1;
+        }
+        int sampleSize = 1;
+        while (imageInfo.cols / (sampleSize * 2) >= width && imageInfo.rows / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Frames are composed by drawing into them, which hardware bitmaps do not allow, and ALPHA_8 bitmaps would
+     * drop their colors: both fall back to ARGB_8888. Without a requested format, opaque animations use RGB_565.
+     */
+    static Bitmap.Config getBitmapConfig(File baseFile, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE) {
+            if (enableDebugLog) Slogger.d("Hardware bitmaps cannot be composed into, using ARGB_8888");
+            return Bitmap.Config.ARGB_8888;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            if (enableDebugLog) Slogger.d("ALPHA_8 bitmaps only keep the alpha channel, using ARGB_8888");
+            return Bitmap.Config.ARGB_8888;
+        }
+        if (config != null) return config;
+        try {
+            return ApngIndex.get(getSourceFile(baseFile)).isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+            return Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    void release() {
+        if (--refCount > 0) return;
+        if (enableVerboseLog) Slogger.v("Release %s", key);
+        sAnimations.remove(key);
+        if (suspended) countSuppressedTicks(System.nanoTime());
+        ApngClock.getInstance().remove(this);
+        framePipeline.stop();
+        subscribers.clear();
+        pausedSubscribers.clear();
+        cachedFrames.release();
+        synchronized (composeLock) {
+            if (checkpointBitmaps != null) Arrays.fill(checkpointBitmaps, null);
+        }
+        if (decodedFramesWriter != null) decodedFramesWriter.abort();
+        ApngDiskCache.get(baseFile.getParentFile()).unpin(baseFile);
+    }
+
+    private boolean prepare() {
+        ApngDiskCache diskCache = ApngDiskCache.get(baseFile.getParentFile());
+        diskCache.touch(baseFile);
+        diskCache.pin(baseFile);
+        try {
+            if (enableDebugLog) Slogger.d("Read APNG information..");
+            File sourceFile = getSourceFile(baseFile);
+            index = ApngIndex.get(sourceFile);
+            // Frames of a partial file are not all there to be extracted
+            if (decodeMode == ApngDrawable.DecodeMode.STREAM || !index.isComplete()) {
+                frameDecoder = new ApngFrameDecoder(sourceFile, index);
+                int frameWidth = ApngFrameDecoder.getSampledSize(index.getImageInfo().cols, sampleSize);
+                int frameHeight = ApngFrameDecoder.getSampledSize(index.getImageInfo().rows, sampleSize);
+                framePixels = new int[frameWidth * frameHeight];
+                if (enableDecodedFrameCache && index.isComplete()) openDecodedFrames();
+            } else {
+                framePixels = new int[index.getImageInfo().cols * index.getImageInfo().rows];
+                File lastFrameFile = new File(baseFile.getParent(), ApngExtractFrames.getFileName(baseFile, index.getFrameCount() - 1));
+                if (lastFrameFile.lastModified() < baseFile.lastModified()) {
+                    if (enableDebugLog) Slogger.d("Extracting PNGs..");
+                    int frames = ApngExtractFrames.process(baseFile);
+                    ApngDiskCache.get(baseFile.getParentFile()).putFrames(baseFile, frames);
+                    if (enableDebugLog) Slogger.d("Extracting complete");
+                }
+                displayImageOptions = new DisplayImageOptions.Builder().cacheInMemory(false).cacheOnDisk(true).build();
+            }
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+            return false;
+        }
+        imageLoader = PngImageLoader.getInstance();
+        PngChunkACTL actl = index.getActl();
+        if (actl != null) {
+            numFrames = actl.getNumFrames();
+            numPlays = actl.getNumPlays();
+            if (enableDebugLog) Slogger.d("numFrames: %d", numFrames);
+        }
+        fctlArrayList.addAll(index.getFctlList());
+        if (fctlArrayList.isEmpty()) return false;
+        // Frames still to be downloaded are announced by acTL
+        frameCapacity = index.isComplete() ? fctlArrayList.size() : Math.max(numFrames, fctlArrayList.size());
+        if (!index.isComplete() && enableDebugLog) Slogger.d("Play while downloading, %d/%d frames", fctlArrayList.size(), frameCapacity);
+        compositor = new ApngCompositor(index.getImageInfo().cols, index.getImageInfo().rows, sampleSize, config);
+        if (enableDebugLog) Slogger.d("Compose at %dx%d (1/%d), %s", compositor.getWidth(), compositor.getHeight(), sampleSize, config);
+        cachedFrames = ApngFrameCache.getInstance().register(frameCapacity);
+        keepFrames = new boolean[frameCapacity];
+        checkpoints = new boolean[frameCapacity];
+        checkpointBitmaps = new Bitmap[frameCapacity];
+        readKeyFrames();
+        if (compositeMode == ApngDrawable.CompositeMode.DOUBLE_BUFFERED) {
+            framePipeline = new ApngFramePipeline(this::composeFrame, fctlArrayList, DOUBLE_BUFFERED_PREFETCH_FRAMES, true);
+        } else {
+            framePipeline = new ApngFramePipeline(this::composeFrame, fctlArrayList, PREFETCH_FRAMES, false);
+        }
+        framePipeline.setLooping(index.isComplete());
+        return true;
+    }
+
+    /**
+     * Maps the frames decoded by an earlier run, or starts storing them as they get decoded.
+     */
+    private void openDecodedFrames() {
+        int frameCount = index.getFrameCount();
+        try {
+            decodedFrames = ApngDecodedCache.open(baseFile, sampleSize, frameCount);
+            if (decodedFrames != null) {
+                if (enableDebugLog) Slogger.d("Read decoded frames from %s", ApngDecodedCache.getFile(baseFile).getPath());
+            } else {
+                decodedFramesWriter = new ApngDecodedCache.Writer(baseFile, sampleSize, frameCount, DECODED_CACHE_MAX_SIZE);
+            }
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+        }
+    }
+
+    /**
+     * Picks the checkpoints, composed frames kept so that any frame can be rebuilt from one of them, a keyframe
+     * or frame 0 within {@link #CHECKPOINT_INTERVAL} compositing steps. A frame disposed to
+     * {@link PngChunkFCTL#APNG_DISPOSE_OP_PREVIOUS} cannot be one, as the next frame also needs what it covered.
+     * <p>
+     * Checkpoints are composed all at once the first time a frame has to be rebuilt, and kept until the animation
+     * is released, out of the frame cache budget. The frames the canvas goes back to after a frame disposed to
+     * PREVIOUS are kept in the cache over the other frames. Called again when downloaded frames are appended.
+     */
+    private void readKeyFrames() {
+        int frameCount = fctlArrayList.size();
+        int lastCheckpoint = 0;
+        for (int i = 1; i < frameCount; i++) {
+            PngChunkFCTL fctl = fctlArrayList.get(i);
+            boolean restartable = fctl.getDisposeOp() != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS;
+            if (restartable && index.getFrame(i).isKeyFrame()) {
+                lastCheckpoint = i;
+            } else if (restartable && i - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                if (!checkpoints[i]) checkpointsBuilt = false;
+                checkpoints[i] = true;
+                lastCheckpoint = i;
+            }
+            if (!restartable) keepFrames[i - 1] = true;
+        }
+    }
+
+    /** Width of the source canvas, which dirty regions refer to */
+    int getImageWidth() {
+        return index.getImageInfo().cols;
+    }
+
+    int getSampleSize() {
+        return sampleSize;
+    }
+
+    int getNumFrames() {
+        return numFrames;
+    }
+
+    /** Number of plays from the acTL chunk, 0 meaning infinite */
+    int getNumPlays() {
+        return numPlays;
+    }
+
+    /**
+     * Number of frames in a loop. While the source is downloaded this is the number announced by acTL,
+     * not all of which can be shown yet.
+     */
+    int getFrameCount() {
+        return frameCapacity;
+    }
+
+    int getCurrentFrame() {
+        return currentFrame;
+    }
+
+    /**
+     * Bitmap of the current frame. It stays valid until the next frame, after which it may be reused.
+     */
+    Bitmap getCurrentBitmap() {
+        return currentBitmap;
+    }
+
+    /**
+     * Region of the canvas changed by the current frame, or null if the whole canvas has to be redrawn.
+     */
+    Rect getDirtyRegion() {
+        return hasDirtyRegion ? dirtyRegion : null;
+    }
+
+    void subscribe(ApngDrawable drawable) {
+        if (subscribers.contains(drawable)) return;
+        subscribers.add(drawable);
+        if (subscribers.size() == 1 && suspended) {
+            resumePlayback();
+        } else if (subscribers.size() == 1) {
+            currentFrame = 0;
+            currentBitmap = baseBitmap;
+            displayedFrame = 0;
+            hasDirtyRegion = false;
+            seeking = false;
+            cachedFrames.setPosition(0);
+            long now = System.nanoTime();
+            framePipeline.start(0, now);
+            framePipeline.obtainFrame(0, now);
+            nextFrameTime = now + getFrameDelay(0);
+            ApngClock.getInstance().add(this);
+        }
+    }
+
+    /**
+     * Moves every subscriber to a frame. The current frame stays on screen until the wanted one is composed,
+     * which never takes more than {@link #CHECKPOINT_INTERVAL} compositing steps once the checkpoints are built.
+     * The first seek builds them, composing every frame once. A frame that cannot be composed is skipped.
+     */
+    void seekTo(int frameIndex) {
+        if (frameIndex < 0 || frameIndex >= fctlArrayList.size()) {
+            throw new IllegalArgumentException("Frame index out of range: " + frameIndex);
+        }
+        if (enableVerboseLog) Slogger.v("Seek to frame %d", frameIndex);
+        currentFrame = (frameIndex - 1 + fctlArrayList.size()) % fctlArrayList.size();
+        displayedFrame = -1;
+        seeking = true;
+        nextFrameTime = System.nanoTime();
+        // A suspended animation only composes the frame once resumed
+        if (subscribers.isEmpty()) return;
+        framePipeline.start(frameIndex, nextFrameTime);
+        ApngClock.getInstance().add(this);
+    }
+
+    void unsubscribe(ApngDrawable drawable) {
+        if (removePaused(drawable) && pausedSubscribers.isEmpty() && suspended) {
+            countSuppressedTicks(System.nanoTime());
+            suspended = false;
+        }
+        if (!subscribers.remove(drawable) || !subscribers.isEmpty()) return;
+        ApngClock.getInstance().remove(this);
+        framePipeline.stop();
+    }
+
+    /**
+     * Stops calling back a drawable that is not shown. Once no subscriber is shown, frames stop being composed
+     * until one of them is resumed.
+     */
+    void pause(ApngDrawable drawable) {
+        if (!subscribers.remove(drawable)) return;
+        pausedSubscribers.add(new WeakReference<>(drawable));
+        if (!subscribers.isEmpty()) return;
+        if (enableVerboseLog) Slogger.v("Suspend %s at frame %d", key, currentFrame);
+        ApngClock.getInstance().remove(this);
+        framePipeline.stop();
+        suspended = true;
+        suspendTime = System.nanoTime();
+    }
+
+    void resume(ApngDrawable drawable) {
+        if (!removePaused(drawable)) return;
+        subscribe(drawable);
+    }
+
+    private boolean removePaused(ApngDrawable drawable) {
+        for (int i = 0; i < pausedSubscribers.size(); i++) {
+            if (pausedSubscribers.get(i).get() == drawable) {
+                pausedSubscribers.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the paused drawables whose host let go of them while detached, which only clears their callback,
+     * and releases the references of those already collected.
+     */
+    private static void releaseOrphans() {
+        if (sAnimations.isEmpty()) return;
+        for (ApngAnimation animation : new ArrayList<>(sAnimations.values())) {
+            for (int i = animation.pausedSubscribers.size() - 1; i >= 0; i--) {
+                ApngDrawable drawable = animation.pausedSubscribers.get(i).get();
+                if (drawable == null) {
+                    if (enableVerboseLog) Slogger.v("Paused drawable collected, release %s", animation.key);
+                    animation.pausedSubscribers.remove(i);
+                    if (animation.pausedSubscribers.isEmpty() && animation.suspended) {
+                        animation.countSuppressedTicks(System.nanoTime());
+                        animation.suspended = false;
+                    }
+                    animation.release();
+                } else if (drawable.getCallback() == null) {
+                    if (enableVerboseLog) Slogger.v("Paused drawable removed from its host, stop");
+                    drawable.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Goes on from the frame after the one shown when the animation was suspended. It is shown at the next
+     * vsync, or as soon as it is composed again if its buffers were released meanwhile.
+     */
+    private void resumePlayback() {
+        long now = System.nanoTime();
+        countSuppressedTicks(now);
+        suspended = false;
+        if (enableVerboseLog) Slogger.v("Resume %s at frame %d", key, currentFrame + 1);
+        displayedFrame = -1;
+        // A frame still to be downloaded is waited for as usual
+        seeking = currentFrame + 1 < fctlArrayList.size() || index.isComplete();
+        nextFrameTime = now;
+        framePipeline.start(seeking ? (currentFrame + 1) % fctlArrayList.size() : currentFrame + 1, nextFrameTime);
+        ApngClock.getInstance().add(this);
+    }
+
+    /**
+     * Counts the frames that would have been shown since the animation was suspended.
+     */
+    private void countSuppressedTicks(long now) {
+        long elapsed = now - Math.max(nextFrameTime, suspendTime);
+        if (elapsed < 0) return;
+        int frameCount = fctlArrayList.size();
+        long loopDuration = 0;
+        for (int i = 0; i < frameCount; i++) {
+            loopDuration += getFrameDelay(i);
+        }
+        long ticks = elapsed / loopDuration * frameCount;
+        elapsed %= loopDuration;
+        for (int i = (currentFrame + 1) % frameCount; elapsed >= 0; i = (i + 1) % frameCount) {
+            ticks++;
+            elapsed -= getFrameDelay(i);
+        }
+        ApngClock.getInstance().addSuppressedTicks(ticks);
+    }
+
+    /**
+     * Releases the orphaned drawables, then every frame buffer of the animations that are suspended: cached
+     * frames, checkpoints and the bitmaps composed last. Their subscribers show the first frame until the
+     * animation is resumed and has composed again.
+     */
+    static void trimMemory() {
+        releaseOrphans();
+        for (ApngAnimation animation : sAnimations.values()) {
+            if (!animation.suspended) continue;
+            if (enableDebugLog) Slogger.d("Release the frames of %s", animation.key);
+            animation.cachedFrames.clear();
+            animation.framePipeline.trim();
+            animation.currentBitmap = animation.baseBitmap;
+            synchronized (animation.composeLock) {
+                animation.composedBitmap = null;
+                animation.composedFrame = -1;
+                animation.firstFrameBitmap = null;
+                Arrays.fill(animation.checkpointBitmaps, null);
+                animation.checkpointsBuilt = false;
+            }
+        }
+    }
+
+    long getNextFrameTime() {
+        return nextFrameTime;
+    }
+
+    /**
+     * Called by the clock at the first vsync the next frame is due. Frames are timed against their absolute
+     * presentation times rather than the time the previous one was shown, so playback does not drift. When
+     * running late, the frames that should already have been replaced are skipped, except the last one of a
+     * loop so that loops are still counted. When frames are composed too slowly for their delays, the newest
+     * composed one is shown and the animation plays on from there, slower than it should.
+     */
+    void onFrame(long frameTime) {
+        if (subscribers.isEmpty()) return;
+        if (!index.isComplete()) {
+            if (frameTime - lastIndexRefresh >= DOWNLOAD_POLL_INTERVAL_NANOS) refreshIndex(frameTime);
+            if (!index.isComplete() && !seeking && currentFrame + 1 >= fctlArrayList.size()) {
+                // The next frame has not been downloaded yet: hold the current one
+                nextFrameTime = frameTime + DOWNLOAD_POLL_INTERVAL_NANOS;
+                return;
+            }
+        }
+        int frameIndex = (currentFrame + 1) % fctlArrayList.size();
+        if (!seeking) {
+            while (frameIndex + 1 < fctlArrayList.size() && frameTime - nextFrameTime >= getFrameDelay(frameIndex)) {
+                nextFrameTime += getFrameDelay(frameIndex);
+                frameIndex++;
+                if (enableVerboseLog) Slogger.v("Late, skip to frame %d", frameIndex);
+            }
+        }
+        Bitmap bitmap = framePipeline.obtainFrame(frameIndex, nextFrameTime);
+        if (bitmap != null && framePipeline.getDisplayedFrame() != frameIndex) {
+            // Composing is slower than the frame delays: play on from the frame that is ready
+            frameIndex = framePipeline.getDisplayedFrame();
+            nextFrameTime = frameTime;
+            if (enableVerboseLog) Slogger.v("Behind, show frame %d", frameIndex);
+        }
+        // A skipped or late frame changes more than its own region
+        hasDirtyRegion = bitmap != null && frameIndex > 0 && frameIndex == displayedFrame + 1;
+        if (hasDirtyRegion) {
+            ApngCompositor.getDirtyRegion(dirtyRegion, fctlArrayList.get(frameIndex - 1), fctlArrayList.get(frameIndex));
+        }
+        if (bitmap != null) {
+            currentBitmap = bitmap;
+            displayedFrame = frameIndex;
+        } else if (seeking && !framePipeline.isFailed(frameIndex)) {
+            // Retried at the next vsync
+            return;
+        } else {
+            if (enableVerboseLog) Slogger.v("Frame %d not ready", frameIndex);
+        }
+        if (seeking) nextFrameTime = frameTime;
+        seeking = false;
+        currentFrame = frameIndex;
+        cachedFrames.setPosition(frameIndex);
+        nextFrameTime += getFrameDelay(frameIndex);
+        // A loop that could not catch up starts over from now
+        if (nextFrameTime < frameTime) nextFrameTime = frameTime;
+        // Drawables may unsubscribe while being called back
+        int count = subscribers.size();
+        if (dispatching.length < count) dispatching = new ApngDrawable[count];
+        subscribers.toArray(dispatching);
+        for (int i = 0; i < count; i++) {
+            dispatching[i].run();
+            dispatching[i] = null;
+        }
+    }
+
+    private long getFrameDelay(int frameIndex) {
+        return Math.max(ApngFramePipeline.getDelayNanos(fctlArrayList.get(frameIndex)), MIN_FRAME_DELAY_NANOS);
+    }
+
+    /**
+     * Picks up the frames downloaded since the source was last read. Once the download is complete, the frames
+     * are read from the final file.
+     */
+    private void refreshIndex(long now) {
+        lastIndexRefresh = now;
+        File sourceFile = getSourceFile(baseFile);
+        ApngIndex newIndex;
+        try {
+            newIndex = ApngIndex.get(sourceFile);
+        } catch (Exception e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            return;
+        }
+        if (newIndex == index) return;
+        int frameCount = Math.min(newIndex.getFrameCount(), frameCapacity);
+        if (frameCount < fctlArrayList.size()) {
+            // The file does not match what was read before
+            Slogger.e("Error: %s changed while playing", sourceFile.getPath());
+            return;
+        }
+        if (frameDecoder != null) frameDecoder = new ApngFrameDecoder(sourceFile, newIndex);
+        index = newIndex;
+        if (frameCount > fctlArrayList.size()) {
+            fctlArrayList.addAll(newIndex.getFctlList().subList(fctlArrayList.size(), frameCount));
+            readKeyFrames();
+        }
+        if (index.isComplete()) frameCapacity = fctlArrayList.size();
+        if (enableDebugLog) Slogger.d("Downloaded %d/%d frames", fctlArrayList.size(), frameCapacity);
+        framePipeline.setLooping(index.isComplete());
+    }
+
+    private Bitmap composeFrame(int frameIndex, Bitmap reusable) {
+        synchronized (composeLock) {
+            return composeFrameLocked(frameIndex, reusable);
+        }
+    }
+
+    private Bitmap composeFrameLocked(int frameIndex, Bitmap reusable) {
+        boolean cached = compositeMode == ApngDrawable.CompositeMode.CACHED;
+        if (frameIndex == 0) {
+            compositor.reset();
+            if (cached) {
+                composedBitmap = getFirstFrameBitmap();
+            } else {
+                composedBitmap = reusable != null ? reusable : compositor.createBitmap();
+                compositor.copy(baseBitmap, composedBitmap);
+            }
+            composedFrame = 0;
+            return composedBitmap;
+        }
+        PngChunkFCTL chunk = fctlArrayList.get(frameIndex);
+        if (cached && chunk.getDisposeOp() != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
+            // A frame disposed to PREVIOUS is always composed since the saved region has to be captured
+            Bitmap bitmap = cachedFrames.get(frameIndex);
+            if (bitmap == null) bitmap = checkpointBitmaps[frameIndex];
+            if (bitmap != null) {
+                composedBitmap = bitmap;
+                composedFrame = frameIndex;
+                return bitmap;
+            }
+        }
+        Bitmap target = !cached && reusable != null ? reusable : compositor.createBitmap();
+        Bitmap previous = composedBitmap;
+        if (composedFrame != frameIndex - 1) {
+            // Seeking or resuming: the previous frame is not the last composed one
+            if (!restoreFrame(target, frameIndex - 1)) return null;
+            previous = target;
+        }
+        composedFrame = -1;
+        int[] frame = loadFrame(frameIndex);
+        if (frame == null) return null;
+        if (enableVerboseLog) Slogger.v("Compose frame %d", frameIndex);
+        compositor.compose(target, previous, fctlArrayList.get(frameIndex - 1), chunk, frame, getFrameSampleSize());
+        if (cached) cachedFrames.put(frameIndex, target, keepFrames[frameIndex]);
+        storeCheckpoint(frameIndex, target);
+        composedBitmap = target;
+        composedFrame = frameIndex;
+        return target;
+    }
+
+    /**
+     * The base bitmap if it already has the size of the canvas, else a scaled copy of it.
+     */
+    private Bitmap getFirstFrameBitmap() {
+        if (baseBitmap.getWidth() == compositor.getWidth() && baseBitmap.getHeight() == compositor.getHeight()) {
+            return baseBitmap;
+        }
+        if (firstFrameBitmap == null) {
+            firstFrameBitmap = compositor.createBitmap();
+            compositor.copy(baseBitmap, firstFrameBitmap);
+        }
+        return firstFrameBitmap;
+    }
+
+    /**
+     * Keeps a composed frame if it is a checkpoint. Cached frames are never drawn into again and are shared,
+     * double buffered ones are copied.
+     */
+    private void storeCheckpoint(int frameIndex, Bitmap bitmap) {
+        if (!checkpoints[frameIndex] || checkpointBitmaps[frameIndex] != null) return;
+        boolean cached = compositeMode == ApngDrawable.CompositeMode.CACHED;
+        checkpointBitmaps[frameIndex] = cached ? bitmap : bitmap.copy(bitmap.getConfig(), false);
+    }
+
+    /**
+     * Composes every checkpoint not composed yet, using {@code target} as scratch. Tried once per set of
+     * checkpoints: a frame that cannot be decoded leaves the ones after it to be composed as they are played.
+     */
+    private void buildCheckpoints(Bitmap target) {
+        checkpointsBuilt = true;
+        int lastCheckpoint = 0;
+        for (int i = fctlArrayList.size() - 1; i > 0 && lastCheckpoint == 0; i--) {
+            if (checkpoints[i] && checkpointBitmaps[i] == null) lastCheckpoint = i;
+        }
+        if (lastCheckpoint == 0) return;
+        if (enableDebugLog) Slogger.d("Build checkpoints up to frame %d", lastCheckpoint);
+        replayFrames(target, lastCheckpoint);
+    }
+
+    /**
+     * Rebuilds the output of a frame into {@code target}, starting from the closest checkpoint, cached frame,
+     * keyframe or frame 0 before it. Checkpoints are built first if they are not yet.
+     */
+    private boolean restoreFrame(Bitmap target, int frameIndex) {
+        composedFrame = -1;
+        if (!checkpointsBuilt) buildCheckpoints(target);
+        return replayFrames(target, frameIndex);
+    }
+
+    private boolean replayFrames(Bitmap target, int frameIndex) {
+        int start = frameIndex;
+        Bitmap startBitmap = null;
+        for (; start > 0; start--) {
+            if (fctlArrayList.get(start).getDisposeOp() == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) continue;
+            startBitmap = checkpointBitmaps[start];
+            if (startBitmap == null) startBitmap = cachedFrames.peek(start);
+            if (startBitmap != null || index.getFrame(start).isKeyFrame()) break;
+        }
+        if (enableDebugLog) Slogger.d("Restore frame %d from frame %d", frameIndex, start);
+        compositor.reset();
+        if (start == 0) startBitmap = baseBitmap;
+        if (startBitmap != null) {
+            compositor.copy(startBitmap, target);
+        } else {
+            int[] frame = loadFrame(start);
+            if (frame == null) return false;
+            compositor.compose(target, null, null, fctlArrayList.get(start), frame, getFrameSampleSize());
+        }
+        for (int i = start + 1; i <= frameIndex; i++) {
+            int[] frame = loadFrame(i);
+            if (frame == null) return false;
+            compositor.compose(target, target, fctlArrayList.get(i - 1), fctlArrayList.get(i), frame, getFrameSampleSize());
+            // The target is drawn into again, so it is copied even in CACHED mode
+            if (checkpoints[i] && checkpointBitmaps[i] == null) checkpointBitmaps[i] = target.copy(target.getConfig(), false);
+        }
+        return true;
+    }
+
+    /**
+     * Pixels of a frame as non-premultiplied ARGB, with the frame width as stride. The buffer is reused.
+     */
+    private int[] loadFrame(int frameIndex) {
+        if (frameDecoder == null) return loadExtractedFrame(frameIndex);
+        if (decodedFrames != null && decodedFrames.read(frameIndex, framePixels)) return framePixels;
+        try {
+            frameDecoder.decodeFrame(frameIndex, framePixels, sampleSize);
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+            return null;
+        }
+        if (decodedFramesWriter != null) storeDecodedFrame(frameIndex);
+        return framePixels;
+    }
+
+    /**
+     * Once every frame has been decoded, the stored frames replace the cache of an earlier run, if any.
+     */
+    private void storeDecodedFrame(int frameIndex) {
+        ApngDecodedCache.Writer writer = decodedFramesWriter;
+        PngChunkFCTL fctl = fctlArrayList.get(frameIndex);
+        int count = ApngFrameDecoder.getSampledFrameSize(fctl.getxOff(), fctl.getWidth(), sampleSize)
+                * ApngFrameDecoder.getSampledFrameSize(fctl.getyOff(), fctl.getHeight(), sampleSize);
+        try {
+            writer.append(frameIndex, framePixels, count);
+            if (!writer.isComplete()) return;
+            File file = writer.commit();
+            ApngDiskCache.get(baseFile.getParentFile()).putDecoded(baseFile);
+            if (enableDebugLog) Slogger.d("Stored decoded frames in %s", file.getPath());
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+            writer.abort();
+        }
+        decodedFramesWriter = null;
+    }
+
+    private int[] loadExtractedFrame(int frameIndex) {
+        String path = new File(baseFile.getParent(), ApngExtractFrames.getFileName(baseFile, frameIndex)).getPath();
+        Bitmap bitmap = imageLoader.loadImageSync(Uri.fromFile(new File(path)).toString(), displayImageOptions);
+        if (bitmap == null) return null;
+        PngChunkFCTL chunk = fctlArrayList.get(frameIndex);
+        int width = chunk.getWidth();
+        int height = chunk.getHeight();
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            // The loader may have scaled the file down
+            bitmap = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+        bitmap.getPixels(framePixels, 0, width, 0, 0, width, height);
+        return framePixels;
+    }
+
+    /**
+     * Sample size of the frames returned by {@link #loadFrame(int)}. Extracted files are loaded at full size.
+     */
+    private int getFrameSampleSize() {
+        return frameDecoder == null ? 1 : sampleSize;
+    }
+}
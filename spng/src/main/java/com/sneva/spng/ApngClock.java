@@ -0,0 +1,108 @@
+package com.sneva.spng;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one frame clock of all animations, driven by the display's vsync. Every active {@link ApngAnimation} is
+ * ticked from the same {@link Choreographer} callback, so their frames change together and each drawable is
+ * invalidated at most once per vsync.
+ * <p>
+ * Frame times are absolute {@link System#nanoTime()} timestamps. The clock only asks for the vsync at which the
+ * earliest animation is due, and sleeps while no animation is.
+ * Only used on the main thread.
+ */
+class ApngClock implements Choreographer.FrameCallback {
+
+    /**
+     * A frame is shown at the vsync closest to its presentation time: half a 60Hz frame early at most.
+     */
+    static final long FRAME_TOLERANCE_NANOS = 8000000L;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static volatile ApngClock sInstance;
+
+    private final List<ApngAnimation> animations = new ArrayList<>();
+    // Animations being ticked, reused so that ticks allocate nothing
+    private ApngAnimation[] ticking = new ApngAnimation[1];
+    private boolean posted;
+    private volatile long suppressedTicks;
+
+    static ApngClock getInstance() {
+        if (sInstance == null) {
+            synchronized (ApngClock.class) {
+                if (sInstance == null) {
+                    sInstance = new ApngClock();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private ApngClock() {
+
+    }
+
+    /**
+     * Starts ticking an animation, or ticks it again at its next frame time after that changed.
+     */
+    void add(ApngAnimation animation) {
+        if (!animations.contains(animation)) animations.add(animation);
+        reschedule(System.nanoTime());
+    }
+
+    void remove(ApngAnimation animation) {
+        animations.remove(animation);
+        if (animations.isEmpty() && posted) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            posted = false;
+        }
+    }
+
+    /**
+     * Frames not shown because no drawable of their animation was, as counted when the animations resume.
+     */
+    long getSuppressedTicks() {
+        return suppressedTicks;
+    }
+
+    void addSuppressedTicks(long ticks) {
+        suppressedTicks += ticks;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        posted = false;
+        // Animations may stop ticking while being ticked
+        int count = animations.size();
+        if (ticking.length < count) ticking = new ApngAnimation[count];
+        animations.toArray(ticking);
+        for (int i = 0; i < count; i++) {
+            if (frameTimeNanos >= ticking[i].getNextFrameTime() - FRAME_TOLERANCE_NANOS) {
+                ticking[i].onFrame(frameTimeNanos);
+            }
+            ticking[i] = null;
+        }
+        reschedule(System.nanoTime());
+    }
+
+    private void reschedule(long now) {
+        if (animations.isEmpty()) return;
+        long nextFrameTime = Long.MAX_VALUE;
+        for (int i = 0; i < animations.size(); i++) {
+            nextFrameTime = Math.min(nextFrameTime, animations.get(i).getNextFrameTime());
+        }
+        Choreographer choreographer = Choreographer.getInstance();
+        if (posted) choreographer.removeFrameCallback(this);
+        posted = true;
+        long delay = (nextFrameTime - FRAME_TOLERANCE_NANOS - now) / NANOS_PER_MILLI;
+        if (delay > 0) {
+            choreographer.postFrameCallbackDelayed(this, delay);
+        } else {
+            choreographer.postFrameCallback(this);
+        }
+    }
+}
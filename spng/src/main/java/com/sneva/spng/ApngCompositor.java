@@ -0,0 +1,151 @@
+package com.sneva.spng;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import com.sneva.spng.assist.ApngCanvas;
+import com.sneva.spng.assist.ApngFrameDecoder;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * Android side of the {@link ApngCanvas}: frames are composed on its pixel buffer and written to bitmaps.
+ * <p>
+ * Only the pixels a frame changes are written when the target already holds the previous output, or the
+ * output before last, as it does when frames are composed into a front/back pair of bitmaps.
+ * <p>
+ * With a sample size above 1 the canvas is downsampled by that factor: frame regions are scaled down,
+ * widened to whole pixels.
+ */
+class ApngCompositor {
+
+    private final ApngCanvas pixelCanvas;
+    private final int width;
+    private final int height;
+    private final int sampleSize;
+    private final Bitmap.Config config;
+    private final Canvas canvas = new Canvas();
+    private final Paint sourcePaint = new Paint();
+    private final Rect dstRect = new Rect();
+    private final Rect dirty = new Rect();
+    private final Rect lastDirty = new Rect();
+    private Bitmap lastOutput;
+    private Bitmap olderOutput;
+
+    /**
+     * @param width      width of the source canvas
+     * @param height     height of the source canvas
+     * @param sampleSize power of two the canvas is downsampled by
+     * @param config     pixel format of the composed frames
+     */
+    ApngCompositor(int width, int height, int sampleSize, Bitmap.Config config) {
+        pixelCanvas = new ApngCanvas(width, height, sampleSize);
+        this.width = pixelCanvas.getWidth();
+        this.height = pixelCanvas.getHeight();
+        this.sampleSize = sampleSize;
+        this.config = config;
+        sourcePaint.setFilterBitmap(true);
+        sourcePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    Bitmap createBitmap() {
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Has to be called before the first frame: the canvas starts fully transparent.
+     */
+    void reset() {
+        pixelCanvas.reset();
+        lastOutput = null;
+        olderOutput = null;
+    }
+
+    /**
+     * Copies a full canvas, scaling it to the canvas size if needed. The next frame is composed over it.
+     */
+    void copy(Bitmap source, Bitmap target) {
+        canvas.setBitmap(target);
+        dstRect.set(0, 0, width, height);
+        canvas.drawBitmap(source, null, dstRect, sourcePaint);
+        canvas.setBitmap(null);
+        target.getPixels(pixelCanvas.getPixels(), 0, width, 0, 0, width, height);
+        lastDirty.set(0, 0, width, height);
+        olderOutput = lastOutput;
+        lastOutput = target;
+    }
+
+    /**
+     * Region that changes between the output of the previous frame and this one: the previous frame's
+     * dispose region, unless it is {@link PngChunkFCTL#APNG_DISPOSE_OP_NONE}, and this frame's blend region.
+     */
+    static void getDirtyRegion(Rect out, PngChunkFCTL previousFctl, PngChunkFCTL fctl) {
+        out.set(fctl.getxOff(), fctl.getyOff(), fctl.getxOff() + fctl.getWidth(), fctl.getyOff() + fctl.getHeight());
+        if (previousFctl != null && previousFctl.getDisposeOp() != PngChunkFCTL.APNG_DISPOSE_OP_NONE) {
+            out.union(previousFctl.getxOff(), previousFctl.getyOff(),
+                    previousFctl.getxOff() + previousFctl.getWidth(), previousFctl.getyOff() + previousFctl.getHeight());
+        }
+    }
+
+    /**
+     * Composes a frame into {@code target}.
+     *
+     * @param previous      output of the previous frame, or null for the first frame. May be {@code target} itself.
+     * @param previousFctl  fcTL of the previous frame, whose dispose operation is applied first
+     * @param frame         decoded sub-frame as non-premultiplied ARGB, row-major with its own width as stride
+     * @param frameSampleSize  sample size the sub-frame was decoded with
+     */
+    void compose(Bitmap target, Bitmap previous, PngChunkFCTL previousFctl, PngChunkFCTL fctl, int[] frame,
+                 int frameSampleSize) {
+        int[] pixels = pixelCanvas.getPixels();
+        if (previous != null && previous != lastOutput) {
+            // The canvas holds another output, e.g. before a cached frame was shown
+            previous.getPixels(pixels, 0, width, 0, 0, width, height);
+        }
+        pixelCanvas.compose(previous == null ? null : previousFctl, fctl, frame, frameSampleSize);
+
+        if (previous == null) {
+            dirty.set(0, 0, width, height);
+        } else {
+            getDirtyRegion(dirty, previousFctl, fctl);
+            scaleRegion(dirty);
+        }
+        if (target == previous) {
+            writePixels(target, dirty);
+        } else if (target == olderOutput && previous == lastOutput) {
+            // The target is one frame behind: bring the previous frame's changes over too
+            lastDirty.union(dirty);
+            writePixels(target, lastDirty);
+        } else {
+            dstRect.set(0, 0, width, height);
+            writePixels(target, dstRect);
+        }
+        lastDirty.set(dirty);
+        olderOutput = previous;
+        lastOutput = target;
+    }
+
+    private void writePixels(Bitmap target, Rect rect) {
+        target.setPixels(pixelCanvas.getPixels(), rect.top * width + rect.left, width, rect.left, rect.top, rect.width(), rect.height());
+    }
+
+    private void scaleRegion(Rect rect) {
+        if (sampleSize != 1) {
+            rect.set(rect.left / sampleSize, rect.top / sampleSize,
+                    ApngFrameDecoder.getSampledSize(rect.right, sampleSize), ApngFrameDecoder.getSampledSize(rect.bottom, sampleSize));
+        }
+        rect.intersect(0, 0, width, height);
+    }
+}
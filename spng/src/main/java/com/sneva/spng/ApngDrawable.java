@@ -3,51 +3,36 @@ package com.sneva.spng;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
-import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.SystemClock;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
-import com.sneva.spng.assist.ApngExtractFrames;
+import com.sneva.spng.assist.ApngCacheKey;
+import com.sneva.spng.assist.ApngDiskCache;
 import com.sneva.spng.assist.ApngListener;
 import com.sneva.spng.assist.AssistUtil;
-import com.sneva.spng.assist.PngImageLoader;
-import com.nostra13.universalimageloader.cache.memory.MemoryCache;
-import com.nostra13.universalimageloader.core.DisplayImageOptions;
 
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-
-import ar.com.hjg.pngj.PngReaderApng;
-import ar.com.hjg.pngj.chunks.PngChunk;
-import ar.com.hjg.pngj.chunks.PngChunkACTL;
-import ar.com.hjg.pngj.chunks.PngChunkFCTL;
 
 import static com.sneva.spng.ApngImageLoader.enableDebugLog;
 import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
 
 public class ApngDrawable extends Drawable implements Animatable, Runnable {
 	
-	private static final float DELAY_FACTOR = 1000F;
     private final Uri sourceUri;
-	private ArrayList<PngChunkFCTL> fctlArrayList = new ArrayList<>();
 	private Bitmap baseBitmap;
-	private DisplayImageOptions displayImageOptions;
-	private PngImageLoader imageLoader;
 	private Paint paint;
 	private String workingPath;
-	private boolean isPrepared = false;
 	private boolean isRunning = false;
 	private int baseWidth;
 	private int baseHeight;
@@ -57,8 +42,35 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 	private int numPlays;
 	private boolean showLastFrameOnStop;
 	private float mScaling;
-    private File baseFile;
 	private ApngListener apngListener;
+	private DecodeMode decodeMode = DecodeMode.STREAM;
+	private Bitmap.Config bitmapConfig;
+	private CompositeMode compositeMode = CompositeMode.CACHED;
+	private File baseFile;
+	private ApngAnimation animation;
+	private Bitmap lastFrameBitmap;
+	private int startFrame;
+	private final Rect dirtyBounds = new Rect();
+	private boolean hasDirtyBounds;
+	private final RectF dstRect = new RectF();
+	private final Rect visibleRect = new Rect();
+	private boolean paused;
+	private ViewTreeObserver watchedObserver;
+	private final ViewTreeObserver.OnScrollChangedListener scrollListener = this::updatePaused;
+
+	public enum DecodeMode {
+		/** Decode frames in memory straight from the source file */
+		STREAM,
+		/** Extract every frame into its own PNG file in the working dir */
+		EXTRACT_FILES
+	}
+
+	public enum CompositeMode {
+		/** Every composed frame is a new bitmap kept in the {@link com.sneva.spng.assist.ApngFrameCache} */
+		CACHED,
+		/** Frames are composed into a front/back pair of bitmaps reused for the whole animation */
+		DOUBLE_BUFFERED
+	}
 
     public ApngDrawable(Context context, Bitmap bitmap, Uri uri) {
 		super();
@@ -67,11 +79,9 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 		mScaling = 0F;
 		paint = new Paint();
 	    paint.setAntiAlias(true);
-		displayImageOptions = new DisplayImageOptions.Builder().cacheInMemory(false).cacheOnDisk(true).build();
 		File workingDir = AssistUtil.getWorkingDir(context);
 		workingPath = workingDir.getPath();
         sourceUri = uri;
-		imageLoader = PngImageLoader.getInstance();
 		baseBitmap = bitmap;
 		baseWidth = bitmap.getWidth();
 		baseHeight = bitmap.getHeight();
@@ -114,22 +124,72 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 		this.showLastFrameOnStop = showLastFrameOnStop;
 	}
 
+	public Bitmap.Config getBitmapConfig() {
+		return bitmapConfig;
+	}
+
+	/**
+	 * Pixel format of the composed frames. When null, the default, opaque animations use
+	 * {@link Bitmap.Config#RGB_565} and the others {@link Bitmap.Config#ARGB_8888}. HARDWARE and ALPHA_8, which
+	 * frames cannot be composed into, fall back to ARGB_8888.
+	 * Has to be set before the animation is prepared, i.e. before the first {@link #start()}.
+	 */
+	public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+		this.bitmapConfig = bitmapConfig;
+	}
+
+	public DecodeMode getDecodeMode() {
+		return decodeMode;
+	}
+
+	/**
+	 * Has to be set before the animation is prepared, i.e. before the first {@link #start()}.
+	 */
+	public void setDecodeMode(DecodeMode decodeMode) {
+		this.decodeMode = decodeMode;
+	}
+
+	public CompositeMode getCompositeMode() {
+		return compositeMode;
+	}
+
+	/**
+	 * Has to be set before the animation is prepared, i.e. before the first {@link #start()}.
+	 */
+	public void setCompositeMode(CompositeMode compositeMode) {
+		this.compositeMode = compositeMode;
+	}
+
+	/**
+	 * Jumps to a frame. While running, every drawable showing the same animation moves with it;
+	 * otherwise playback starts from that frame on the next {@link #start()}.
+	 */
+	public void seekToFrame(int frameIndex) {
+		if (animation != null) {
+			animation.seekTo(frameIndex);
+		} else {
+			startFrame = frameIndex;
+		}
+	}
+
 	@Override
 	public void start() {
 		if (!isRunning()) {
 			isRunning = true;
 			currentFrame = 0;
-			if (!isPrepared) {
-				if (enableVerboseLog) Slogger.v("Prepare");
-				prepare();
-			}
-            if (isPrepared) {
-                if (enableVerboseLog) Slogger.v("Run");
-                run();
+			lastFrameBitmap = null;
+			if (animation == null) prepare();
+			if (animation != null) {
+				if (enableVerboseLog) Slogger.v("Run");
+				animation.subscribe(this);
+				if (startFrame > 0) animation.seekTo(startFrame);
+				startFrame = 0;
+				updatePaused();
+				invalidateSelf();
 				if (apngListener != null) apngListener.onAnimationStart(this);
-            } else {
-                stop();
-            }
+			} else {
+				stop();
+			}
 		}
 	}
 
@@ -137,8 +197,14 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 	public void stop() {
 		if (isRunning()) {
 	        currentLoop = 0;
-			unscheduleSelf(this);
+			if (animation != null) {
+				animation.unsubscribe(this);
+				animation.release();
+				animation = null;
+			}
 			isRunning = false;
+			paused = false;
+			unwatchViewport();
 			if (apngListener != null) apngListener.onAnimationEnd(this);
         }
 	}
@@ -148,42 +214,176 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 		return isRunning;
 	}
 
+	/**
+	 * Called by the shared animation every time it moves to the next frame.
+	 * A drawable started while the animation already runs joins it at its current frame.
+	 */
 	@Override
 	public void run() {
-		if (showLastFrameOnStop && numPlays > 0 && currentLoop >= numPlays) {
-			stop();
+		if (animation == null) return;
+		// Scrolled out of the viewport without any other notice
+		if (!isShown()) {
+			updatePaused();
 			return;
 		}
-		if (currentFrame < 0) {
-			currentFrame = 0;
-		} else if (currentFrame > fctlArrayList.size() - 1) {
-			currentFrame = 0;
+		currentFrame = animation.getCurrentFrame();
+		updateDirtyBounds(animation.getDirtyRegion());
+		if (numPlays > 0 && currentFrame == animation.getFrameCount() - 1) {
+			currentLoop++;
+			if (apngListener != null) apngListener.onAnimationRepeat(this);
+			if (enableVerboseLog) Slogger.v("Loop count: %d/%d", currentLoop, numPlays);
+			if (currentLoop >= numPlays) {
+				if (showLastFrameOnStop) keepLastFrame(animation.getCurrentBitmap());
+				stop();
+				hasDirtyBounds = false;
+			}
 		}
-		PngChunkFCTL pngChunk = fctlArrayList.get(currentFrame);
-		int delayNum = pngChunk.getDelayNum();
-        int delayDen = pngChunk.getDelayDen();
-		int delay = Math.round(delayNum * DELAY_FACTOR / delayDen);
-		scheduleSelf(this, SystemClock.uptimeMillis() + delay);
 		invalidateSelf();
 	}
 
+	private void keepLastFrame(Bitmap bitmap) {
+		// Double buffered frames are reused by the animation as soon as it moves on
+		if (compositeMode == CompositeMode.DOUBLE_BUFFERED && bitmap != baseBitmap) {
+			bitmap = bitmap.copy(bitmap.getConfig(), false);
+		}
+		lastFrameBitmap = bitmap;
+	}
+
+	/**
+	 * Frames are composed at the smallest power of two fraction of the source size that still covers the bounds.
+	 * When the bounds change enough to call for another fraction, the animation is swapped at the same frame.
+	 */
 	@Override
-	public void draw(Canvas canvas) {
-		if (enableVerboseLog) Slogger.v("Current frame: %d", currentFrame);
-		if (currentFrame <= 0) {
-			drawBaseBitmap(canvas);
+	protected void onBoundsChange(Rect bounds) {
+		super.onBoundsChange(bounds);
+		// Left to the first draw if there is nothing to fit yet
+		mScaling = 0F;
+		if (!bounds.isEmpty()) setScaling(bounds.width(), bounds.height());
+		if (animation == null) return;
+		int sampleSize = ApngAnimation.getSampleSize(baseFile, bounds.width(), bounds.height());
+		if (sampleSize == animation.getSampleSize()) return;
+		ApngAnimation newAnimation = ApngAnimation.acquire(baseFile, baseBitmap, bounds.width(), bounds.height(), bitmapConfig, decodeMode, compositeMode);
+		if (newAnimation == null) return;
+		int frame = animation.getCurrentFrame();
+		animation.unsubscribe(this);
+		animation.release();
+		animation = newAnimation;
+		animation.subscribe(this);
+		if (frame > 0) animation.seekTo(frame);
+		if (paused) animation.pause(this);
+	}
+
+	/**
+	 * Called by the host view when it is attached, detached or changes visibility, and when it replaces the
+	 * drawable, which is then stopped.
+	 */
+	@Override
+	public boolean setVisible(boolean visible, boolean restart) {
+		boolean changed = super.setVisible(visible, restart);
+		updatePaused();
+		return changed;
+	}
+
+	/**
+	 * Whether any part of the drawable can be seen: it is visible, and so is a part of its host view if it has one.
+	 */
+	private boolean isShown() {
+		if (!isVisible()) return false;
+		if (!(getCallback() instanceof View)) return true;
+		View view = (View) getCallback();
+		return view.getWindowToken() != null && view.isShown() && view.getGlobalVisibleRect(visibleRect);
+	}
+
+	/**
+	 * A running drawable that cannot be seen pauses, letting its animation stop composing frames while no other
+	 * drawable shows it. It resumes where it left off once shown again.
+	 */
+	private void updatePaused() {
+		if (isRunning && !isVisible() && getCallback() == null) {
+			// Taken out of its host: nothing would ever stop it, and its animation would keep it reachable
+			if (enableVerboseLog) Slogger.v("Removed from its host, stop");
+			stop();
+			return;
+		}
+		if (!isRunning || animation == null || paused == !isShown()) return;
+		paused = !paused;
+		if (paused) {
+			if (enableVerboseLog) Slogger.v("Pause at frame %d", currentFrame);
+			animation.pause(this);
+			watchViewport();
 		} else {
-			drawAnimateBitmap(canvas, currentFrame);
+			if (enableVerboseLog) Slogger.v("Resume");
+			unwatchViewport();
+			animation.resume(this);
 		}
-		if (!showLastFrameOnStop && numPlays > 0 && currentLoop >= numPlays) {
-			stop();
+	}
+
+	/**
+	 * Scrolling is the only way back into the viewport that the drawable is not told about.
+	 */
+	private void watchViewport() {
+		if (!(getCallback() instanceof View)) return;
+		unwatchViewport();
+		watchedObserver = ((View) getCallback()).getViewTreeObserver();
+		watchedObserver.addOnScrollChangedListener(scrollListener);
+	}
+
+	private void unwatchViewport() {
+		if (watchedObserver == null) return;
+		if (watchedObserver.isAlive()) watchedObserver.removeOnScrollChangedListener(scrollListener);
+		watchedObserver = null;
+	}
+
+	/**
+	 * Only the part changed by the next frame, so hosts relying on {@link #getDirtyBounds()}
+	 * redraw in proportion to the changed pixels.
+	 */
+	@Override
+	public Rect getDirtyBounds() {
+		return hasDirtyBounds ? dirtyBounds : getBounds();
+	}
+
+	private void updateDirtyBounds(Rect region) {
+		hasDirtyBounds = region != null && mScaling != 0F;
+		if (!hasDirtyBounds) return;
+		// Regions are in source pixels, the base bitmap may have been downsampled by the loader
+		float scaling = mScaling * baseWidth / animation.getImageWidth();
+		dirtyBounds.set((int) Math.floor(region.left * scaling), (int) Math.floor(region.top * scaling),
+				(int) Math.ceil(region.right * scaling), (int) Math.ceil(region.bottom * scaling));
+	}
+
+	/**
+	 * Called for every frame, so it allocates nothing: the destination is computed when the bounds change.
+	 */
+	@Override
+	public void draw(Canvas canvas) {
+		if (enableVerboseLog) Slogger.v("Current frame: %d", currentFrame);
+		if (mScaling == 0F) {
+			if (enableVerboseLog) Slogger.v("Canvas: %dx%d", canvas.getWidth(), canvas.getHeight());
+			setScaling(canvas.getWidth(), canvas.getHeight());
 		}
-		if (numPlays > 0 && currentFrame == numFrames - 1) {
-			currentLoop++;
-			if (apngListener != null) apngListener.onAnimationRepeat(this);
-			if (enableVerboseLog) Slogger.v("Loop count: %d/%d", currentLoop, numPlays);
+
+		Bitmap bitmap = baseBitmap;
+		if (lastFrameBitmap != null) {
+			bitmap = lastFrameBitmap;
+		} else if (animation != null) {
+			bitmap = animation.getCurrentBitmap();
 		}
-		currentFrame++;
+		canvas.drawBitmap(bitmap, null, dstRect, paint);
+	}
+
+	/**
+	 * Fits the base bitmap into the given size. Composed frames may be downsampled, they are all drawn at the
+	 * size of the base bitmap.
+	 */
+	private void setScaling(int width, int height) {
+		float scalingByWidth = ((float) width) / baseWidth;
+		if (enableVerboseLog) Slogger.v("scalingByWidth: %.2f", scalingByWidth);
+		float scalingByHeight = ((float) height) / baseHeight;
+		if (enableVerboseLog) Slogger.v("scalingByHeight: %.2f", scalingByHeight);
+		mScaling = scalingByWidth <= scalingByHeight ? scalingByWidth : scalingByHeight;
+		if (enableVerboseLog) Slogger.v("mScaling: %.2f", mScaling);
+		dstRect.set(0, 0, mScaling * baseWidth, mScaling * baseHeight);
 	}
 
 	@Override
@@ -201,167 +401,47 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 		return PixelFormat.TRANSLUCENT;
 	}
 
-	private void readApngInformation(File baseFile) {
-		PngReaderApng reader = new PngReaderApng(baseFile);
-		reader.end();
-		List<PngChunk> pngChunks = reader.getChunksList().getChunks();
-		PngChunk chunk;
-		for (int i = 0; i < pngChunks.size(); i++) {
-			chunk = pngChunks.get(i);
-			if (chunk instanceof PngChunkACTL) {
-				numFrames = ((PngChunkACTL) chunk).getNumFrames();
-				if (enableDebugLog) Slogger.d("numFrames: %d", numFrames);
-				if (numPlays > 0) {
-                    if (enableDebugLog) Slogger.d("numPlays: %d (user defined)", numPlays);
-				} else {
-                    numPlays = ((PngChunkACTL) chunk).getNumPlays();
-                    if (enableDebugLog) Slogger.d("numPlays: %d (media info)", numPlays);
-				}
-			} else if (chunk instanceof PngChunkFCTL) {
-				fctlArrayList.add((PngChunkFCTL) chunk);
-			}
+	private void readAnimationControl(ApngAnimation animation) {
+		numFrames = animation.getNumFrames();
+		if (enableDebugLog) Slogger.d("numFrames: %d", numFrames);
+		if (numPlays > 0) {
+			if (enableDebugLog) Slogger.d("numPlays: %d (user defined)", numPlays);
+		} else {
+			numPlays = animation.getNumPlays();
+			if (enableDebugLog) Slogger.d("numPlays: %d (media info)", numPlays);
 		}
 	}
 
-	private void drawBaseBitmap(Canvas canvas) {
-		if (mScaling == 0F) {
-			int width = canvas.getWidth();
-			int height = canvas.getHeight();
-			if (enableVerboseLog) Slogger.v("Canvas: %dx%d", width, height);
-			float scalingByWidth = ((float) canvas.getWidth())/ baseWidth;
-			if (enableVerboseLog) Slogger.v("scalingByWidth: %.2f", scalingByWidth);
-			float scalingByHeight = ((float) canvas.getHeight())/ baseHeight;
-			if (enableVerboseLog) Slogger.v("scalingByHeight: %.2f", scalingByHeight);
-			mScaling = scalingByWidth <= scalingByHeight ? scalingByWidth : scalingByHeight;
-			if (enableVerboseLog) Slogger.v("mScaling: %.2f", mScaling);
-		}
-
-		RectF dst = new RectF(0, 0, mScaling * baseWidth, mScaling * baseHeight);
-		canvas.drawBitmap(baseBitmap, null, dst, paint);
-        cacheBitmap(0, baseBitmap);
-	}
-	
-	private void drawAnimateBitmap(Canvas canvas, int frameIndex) {
-        Bitmap bitmap = getCacheBitmap(frameIndex);
-			if (bitmap == null) {
-				bitmap = createAnimateBitmap(frameIndex);
-				cacheBitmap(frameIndex, bitmap);
-			}
-			if (bitmap == null) return;
-			RectF dst = new RectF(0, 0, mScaling * bitmap.getWidth(), mScaling * bitmap.getHeight());
-			canvas.drawBitmap(bitmap, null, dst, paint);
-	}
-
-	private Bitmap createAnimateBitmap(int frameIndex) {
-		if (enableVerboseLog) Slogger.v("ENTER");
-        Bitmap bitmap = null;
-		PngChunkFCTL previousChunk = frameIndex > 0 ? fctlArrayList.get(frameIndex - 1) : null;
-		if (previousChunk != null) {
-            bitmap = handleDisposeOperation(frameIndex, baseFile, previousChunk);
-		}
-		String path = new File(workingPath, ApngExtractFrames.getFileName(baseFile, frameIndex)).getPath();
-        Bitmap frameBitmap = imageLoader.loadImageSync(Uri.fromFile(new File(path)).toString(), displayImageOptions);
-		Bitmap redrawnBitmap;
-		PngChunkFCTL chunk = fctlArrayList.get(frameIndex);
-		byte blendOp = chunk.getBlendOp();
-		int offsetX = chunk.getxOff();
-		int offsetY = chunk.getyOff();
-		redrawnBitmap = handleBlendingOperation(offsetX, offsetY, blendOp, frameBitmap, bitmap);
-		if (enableVerboseLog) Slogger.v("EXIT");
-		return redrawnBitmap;
-	}
-
-    private Bitmap handleDisposeOperation(int frameIndex, File baseFile, PngChunkFCTL previousChunk) {
-        Bitmap bitmap = null;
-        byte disposeOp = previousChunk.getDisposeOp();
-        int offsetX = previousChunk.getxOff();
-        int offsetY = previousChunk.getyOff();
-        Canvas tempCanvas;
-        Bitmap frameBitmap;
-        Bitmap tempBitmap;
-        String tempPath;
-
-        switch (disposeOp) {
-        case PngChunkFCTL.APNG_DISPOSE_OP_NONE:
-            // Get bitmap from the previous frame
-            bitmap = frameIndex > 0 ? getCacheBitmap(frameIndex - 1) : null;
-            break;
-
-        case PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND:
-            // Get bitmap from the previous frame but the drawing region is needed to be cleared
-            bitmap = frameIndex > 0 ? getCacheBitmap(frameIndex - 1) : null;
-            if (bitmap == null) break;
-
-            tempPath = new File(workingPath, ApngExtractFrames.getFileName(baseFile, frameIndex - 1)).getPath();
-            frameBitmap = imageLoader.loadImageSync(Uri.fromFile(new File(tempPath)).toString(), displayImageOptions);
-            if (enableVerboseLog) Slogger.v("Create a new bitmap");
-            tempBitmap = Bitmap.createBitmap(baseWidth, baseHeight, Bitmap.Config.ARGB_8888);
-            tempCanvas = new Canvas(tempBitmap);
-            tempCanvas.drawBitmap(bitmap, 0, 0, null);
-            tempCanvas.clipRect(offsetX, offsetY, offsetX + frameBitmap.getWidth(), offsetY + frameBitmap.getHeight());
-            tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            tempCanvas.clipRect(0, 0, baseWidth, baseHeight);
-            bitmap = tempBitmap;
-            break;
-
-        case PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS:
-            if (frameIndex > 1) {
-                PngChunkFCTL tempPngChunk;
-
-                for (int i = frameIndex - 2; i >= 0; i--) {
-                    tempPngChunk = fctlArrayList.get(i);
-                    int tempDisposeOp = tempPngChunk.getDisposeOp();
-                    int tempOffsetX = tempPngChunk.getxOff();
-                    int tempOffsetY = tempPngChunk.getyOff();
-                    tempPath = new File(workingPath, ApngExtractFrames.getFileName(baseFile, i)).getPath();
-                    frameBitmap = imageLoader.loadImageSync(Uri.fromFile(new File(tempPath)).toString(), displayImageOptions);
-                    if (tempDisposeOp != PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) {
-                        if (tempDisposeOp == PngChunkFCTL.APNG_DISPOSE_OP_NONE) {
-                            bitmap = getCacheBitmap(i);
-							if (bitmap == null) {
-								Slogger.w("Can't retrieve previous APNG_DISPOSE_OP_NONE frame: please try to increase memory cache size!");
-							}
-                        } else if (tempDisposeOp == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND) {
-                            if (enableVerboseLog) Slogger.v("Create a new bitmap");
-                            tempBitmap = Bitmap.createBitmap(baseWidth, baseHeight, Bitmap.Config.ARGB_8888);
-                            tempCanvas = new Canvas(tempBitmap);
-                            tempCanvas.drawBitmap(getCacheBitmap(i), 0, 0, null);
-                            tempCanvas.clipRect(tempOffsetX, tempOffsetY, tempOffsetX + frameBitmap.getWidth(), tempOffsetY + frameBitmap.getHeight());
-                            tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                            tempCanvas.clipRect(0, 0, baseWidth, baseHeight);
-                            bitmap = tempBitmap;
-                        }
-                        break;
-                    }
-                }
-            }
-            break;
-        }
-        return bitmap;
-    }
-
 	private void prepare() {
 		String imagePath = getImagePathFromUri();
 		if (imagePath == null) return;
 		baseFile = new File(imagePath);
-        if (!baseFile.exists()) return;
-		if (enableDebugLog) Slogger.d("Extracting PNGs..");
-		ApngExtractFrames.process(baseFile);
-		if (enableDebugLog) Slogger.d("Extracting complete");
-		if (enableDebugLog) Slogger.d("Read APNG information..");
-		readApngInformation(baseFile);
-		isPrepared = true;
+        if (ApngAnimation.getSourceFile(baseFile) == null) return;
+		Rect bounds = getBounds();
+		animation = ApngAnimation.acquire(baseFile, baseBitmap, bounds.width(), bounds.height(), bitmapConfig, decodeMode, compositeMode);
+		if (animation != null) readAnimationControl(animation);
 	}
 
 	private String getImagePathFromUri() {
 		if (sourceUri == null) return null;
 		String imagePath = null;
 		try {
-			String filename = sourceUri.getLastPathSegment();
-			File file = new File(workingPath, filename);
-			if (!file.exists()) {
-				if (enableVerboseLog) Slogger.v("Copy file from %s to %s", sourceUri.getPath(), file.getPath());
-				FileUtils.copyFile(new File(sourceUri.getPath()), file);
+			File sourceFile = new File(sourceUri.getPath());
+			File workingDir = new File(workingPath);
+			ApngDiskCache diskCache = ApngDiskCache.get(workingDir);
+			File file;
+			if (workingDir.getAbsolutePath().equals(sourceFile.getAbsoluteFile().getParent())) {
+				// Copied by the downloader, maybe found since to duplicate an image stored for another URI
+				file = new File(workingDir, diskCache.resolve(sourceFile.getName()));
+			} else {
+				// Any other file is copied once, named after its URI like downloaded images
+				file = new File(workingDir, diskCache.resolve(ApngCacheKey.getFileName(sourceUri.toString())));
+				// A file still being downloaded is read as it grows
+				if (ApngAnimation.getSourceFile(file) == null) {
+					if (enableVerboseLog) Slogger.v("Copy file from %s to %s", sourceFile.getPath(), file.getPath());
+					FileUtils.copyFile(sourceFile, file);
+					file = diskCache.put(file, ApngCacheKey.hashFile(file));
+				}
 			}
 			imagePath = file.getPath();
 		} catch (Exception e) {
@@ -369,37 +449,4 @@ public class ApngDrawable extends Drawable implements Animatable, Runnable {
 		}
 		return imagePath;
 	}
-
-	private Bitmap handleBlendingOperation(int offsetX, int offsetY, byte blendOp, Bitmap frameBitmap, Bitmap baseBitmap) {
-        if (enableVerboseLog) Slogger.v("Create a new bitmap");
-		Bitmap redrawnBitmap = Bitmap.createBitmap(baseWidth, baseHeight, Bitmap.Config.ARGB_8888);
-		Canvas canvas = new Canvas(redrawnBitmap);
-		if (baseBitmap != null) {
-			canvas.drawBitmap(baseBitmap, 0, 0, null);
-			if (blendOp == PngChunkFCTL.APNG_BLEND_OP_SOURCE) {
-				canvas.clipRect(offsetX, offsetY, offsetX + frameBitmap.getWidth(), offsetY + frameBitmap.getHeight());
-				canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-				canvas.clipRect(0, 0, baseWidth, baseHeight);
-			}
-		}
-		canvas.drawBitmap(frameBitmap, offsetX, offsetY, null);
-		return redrawnBitmap;
-	}
-
-    private String getCacheKey(int frameIndex) {
-        return String.format("%s-%s", sourceUri.toString(), frameIndex);
-    }
-
-    private void cacheBitmap(int frameIndex, Bitmap bitmap) {
-        if (bitmap == null) return;
-        MemoryCache memoryCache = imageLoader == null ? null : imageLoader.getMemoryCache();
-        if (memoryCache == null) return;
-        memoryCache.put(getCacheKey(frameIndex), bitmap);
-    }
-
-    private Bitmap getCacheBitmap(int frameIndex) {
-        MemoryCache memoryCache = imageLoader == null ? null : imageLoader.getMemoryCache();
-        if (memoryCache == null) return null;
-        return memoryCache.get(getCacheKey(frameIndex));
-    }
 }
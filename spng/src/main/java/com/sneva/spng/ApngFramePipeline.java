@@ -0,0 +1,300 @@
+package com.sneva.spng;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * Composes animation frames ahead of time on a background worker into a small ring of ready bitmaps.
+ * Frames are composed in order; across animations the worker picks the frame with the earliest
+ * presentation deadline, derived from the fcTL delays. The consumer never waits: if the wanted
+ * frame is not ready yet, {@link #obtainFrame(int, long)} returns the newest frame the worker has
+ * composed on its way there, or null and the caller keeps showing the previous one.
+ * <p>
+ * Deadlines are presentation times on the {@link System#nanoTime()} time base of {@link ApngClock}: the caller
+ * passes the time of the frame it wants, and the deadline of each following frame adds its fcTL delay.
+ * <p>
+ * When frames are recycled, bitmaps that were displayed or dropped are handed back to the source
+ * for the next composition, so playback keeps cycling through the same few bitmaps.
+ * <p>
+ * The frame list may grow while frames are composed, e.g. while the image is downloaded, in which case it has
+ * to be safe to read from the worker.
+ */
+class ApngFramePipeline {
+
+    interface FrameSource {
+        /**
+         * Called in frame order, starting from the frame given to {@link #start(int, long)}.
+         *
+         * @param reusable a recycled bitmap to compose into, or null
+         */
+        Bitmap composeFrame(int frameIndex, Bitmap reusable);
+    }
+
+    private static final int POOL_SIZE = 2;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final FrameSource source;
+    private final List<PngChunkFCTL> fctlList;
+    private final Bitmap[] readyFrames;
+    private final int[] readyIndexes;
+    private final boolean recycleFrames;
+    private final ArrayDeque<Bitmap> freeFrames = new ArrayDeque<>();
+    // At most one task is queued at a time, so the same one is queued again
+    private final ComposeTask composeTask = new ComposeTask(this);
+    private Bitmap displayedBitmap;
+    private int head;
+    private int count;
+    private int nextFrame;
+    private int displayedFrame = -1;
+    // Last frame the source could not compose since start, -1 if none
+    private int failedFrame = -1;
+    // Presentation time of nextFrame
+    private long nextDeadline;
+    private boolean running;
+    private boolean looping = true;
+    private boolean scheduled;
+    private int generation;
+
+    ApngFramePipeline(FrameSource source, List<PngChunkFCTL> fctlList, int prefetchFrames, boolean recycleFrames) {
+        this.source = source;
+        this.fctlList = fctlList;
+        this.recycleFrames = recycleFrames;
+        readyFrames = new Bitmap[prefetchFrames];
+        readyIndexes = new int[prefetchFrames];
+    }
+
+    /**
+     * Delay of a frame without rounding to milliseconds, so that delays like 1/30s add up without drift.
+     */
+    static long getDelayNanos(PngChunkFCTL fctl) {
+        int delayDen = fctl.getDelayDen() == 0 ? 100 : fctl.getDelayDen();
+        return fctl.getDelayNum() * 1000000000L / delayDen;
+    }
+
+    /**
+     * @param frameTime presentation time of {@code fromFrame}
+     */
+    synchronized void start(int fromFrame, long frameTime) {
+        running = true;
+        clear();
+        generation++;
+        nextFrame = fromFrame;
+        nextDeadline = frameTime;
+        displayedFrame = -1;
+        failedFrame = -1;
+        schedule();
+    }
+
+    /**
+     * Whether frame 0 follows the last frame of the list. When not, the worker stops after the last frame until
+     * the list grows or looping is turned on, either of which has to be reported by calling this again.
+     */
+    synchronized void setLooping(boolean looping) {
+        this.looping = looping;
+        schedule();
+    }
+
+    synchronized void stop() {
+        running = false;
+        clear();
+        generation++;
+    }
+
+    /**
+     * Lets go of the bitmaps kept for reuse and of the one displayed last, e.g. while the animation is suspended
+     * under memory pressure.
+     */
+    synchronized void trim() {
+        freeFrames.clear();
+        displayedBitmap = null;
+    }
+
+    /**
+     * Returns the composed bitmap of a frame if it is ready, dropping every older frame of the ring.
+     * <p>
+     * If the worker has not got there yet, the newest frame it composed after the displayed one is returned
+     * instead, see {@link #getDisplayedFrame()}: a worker slower than the frame delays then plays the animation
+     * slowly rather than falling behind for good. Only when the worker is not on its way to the frame, e.g. after
+     * the frame was skipped to, is it moved there, starting over from the closest frame the source can
+     * restore.
+     *
+     * @param frameTime presentation time of {@code frameIndex}
+     * @return null if no frame between the displayed one and the wanted one is ready
+     */
+    synchronized Bitmap obtainFrame(int frameIndex, long frameTime) {
+        int numFrames = fctlList.size();
+        int wanted = getDistance(frameIndex, numFrames);
+        // The ring is in play order: the frames on the way to the wanted one come first
+        int ready = 0;
+        while (ready < count && getDistance(readyIndexes[(head + ready) % readyFrames.length], numFrames) <= wanted) {
+            ready++;
+        }
+        Bitmap bitmap = null;
+        if (ready > 0) {
+            drop(ready - 1);
+            displayedFrame = readyIndexes[head];
+            bitmap = poll();
+            if (displayedBitmap != bitmap) recycle(displayedBitmap);
+            displayedBitmap = bitmap;
+        } else if (frameIndex != failedFrame
+                && (count > 0 || nextFrame >= numFrames || getDistance(nextFrame, numFrames) > wanted)) {
+            // The ready frames are stale, or the worker is not going that way. A frame that failed is not retried.
+            clear();
+            generation++;
+            nextFrame = frameIndex;
+            nextDeadline = frameTime;
+        }
+        schedule();
+        return bitmap;
+    }
+
+    /**
+     * Frame of the last bitmap returned by {@link #obtainFrame(int, long)}, -1 if none was since {@link #start(int, long)}.
+     */
+    synchronized int getDisplayedFrame() {
+        return displayedFrame;
+    }
+
+    /**
+     * Whether the source could not compose a frame since {@link #start(int, long)}, e.g. as its data is corrupt.
+     */
+    synchronized boolean isFailed(int frameIndex) {
+        return frameIndex == failedFrame;
+    }
+
+    /**
+     * Position of a frame in play order after the displayed one, 0 for the frame right after it.
+     */
+    private int getDistance(int frameIndex, int numFrames) {
+        return (frameIndex - displayedFrame - 1 + 2 * numFrames) % numFrames;
+    }
+
+    private Bitmap poll() {
+        Bitmap bitmap = readyFrames[head];
+        readyFrames[head] = null;
+        head = (head + 1) % readyFrames.length;
+        count--;
+        return bitmap;
+    }
+
+    private void drop(int frames) {
+        for (int i = 0; i < frames; i++) {
+            recycle(poll());
+        }
+    }
+
+    private void recycle(Bitmap bitmap) {
+        if (recycleFrames && bitmap != null) freeFrames.push(bitmap);
+    }
+
+    private void clear() {
+        drop(count);
+        head = 0;
+    }
+
+    private void schedule() {
+        if (!running || scheduled || count == readyFrames.length || nextFrame >= fctlList.size()) return;
+        scheduled = true;
+        composeTask.generation = generation;
+        composeTask.deadline = nextDeadline;
+        getExecutor().execute(composeTask);
+    }
+
+    private void composeNext(int taskGeneration) {
+        int frameIndex;
+        Bitmap reusable;
+        synchronized (this) {
+            if (taskGeneration != generation) {
+                scheduled = false;
+                schedule();
+                return;
+            }
+            frameIndex = nextFrame;
+            reusable = freeFrames.poll();
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = source.composeFrame(frameIndex, reusable);
+        } catch (Exception e) {
+            Slogger.e("Error: %s", e.toString());
+        }
+        synchronized (this) {
+            scheduled = false;
+            if (bitmap == null) recycle(reusable);
+            if (taskGeneration != generation) {
+                recycle(bitmap);
+            } else {
+                if (bitmap == null) failedFrame = frameIndex;
+                if (bitmap != null) {
+                    int tail = (head + count) % readyFrames.length;
+                    readyFrames[tail] = bitmap;
+                    readyIndexes[tail] = frameIndex;
+                    count++;
+                }
+                nextDeadline += getDelayNanos(fctlList.get(frameIndex));
+                nextFrame = frameIndex + 1;
+                if (looping && nextFrame == fctlList.size()) nextFrame = 0;
+            }
+            schedule();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ComposerThreadFactory());
+        }
+        return sExecutor;
+    }
+
+    private static class ComposeTask implements Runnable, Comparable<ComposeTask> {
+        private final ApngFramePipeline pipeline;
+        // Only changed while the task is not queued
+        private volatile int generation;
+        private volatile long deadline;
+
+        ComposeTask(ApngFramePipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void run() {
+            pipeline.composeNext(generation);
+        }
+
+        @Override
+        public int compareTo(ComposeTask o) {
+            // Compared as differences, nanoTime() values may overflow
+            long difference = deadline - o.deadline;
+            return difference < 0 ? -1 : difference == 0 ? 0 : 1;
+        }
+    }
+
+    private static class ComposerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "apng-composer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
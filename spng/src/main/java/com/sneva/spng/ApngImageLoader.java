@@ -1,10 +1,14 @@
 package com.sneva.spng;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.view.View;
 import android.widget.ImageView;
 
+import com.sneva.spng.assist.ApngFrameCache;
 import com.sneva.spng.assist.ApngImageDownloader;
 import com.sneva.spng.assist.ApngImageLoaderCallback;
 import com.sneva.spng.assist.ApngImageLoadingListener;
@@ -14,14 +18,39 @@ import com.nostra13.universalimageloader.cache.memory.impl.LruMemoryCache;
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
+import com.nostra13.universalimageloader.core.download.ImageDownloader.Scheme;
 
 public class ApngImageLoader extends ImageLoader {
     public static boolean enableVerboseLog = false;
     public static boolean enableDebugLog = false;
+    public static boolean enableDecodedFrameCache = false;
+    public static boolean enableStreaming = false;
 
     private static ApngImageLoader singleton;
 
     private Context context;
+    private boolean memoryCallbacksRegistered;
+    private int downloaderPoolSize = ApngImageDownloader.DEFAULT_POOL_SIZE;
+    private ApngImageDownloader imageDownloader;
+    private DisplayImageOptions defaultDisplayImageOptions;
+
+    // Paused animations give their frames back when memory runs low
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) ApngAnimation.trimMemory();
+        }
+
+        @Override
+        public void onLowMemory() {
+            ApngAnimation.trimMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+    };
 
     public static ApngImageLoader getInstance() {
         if (singleton == null) {
@@ -46,10 +75,18 @@ public class ApngImageLoader extends ImageLoader {
             commonImageLoaderConfiguration = getDefaultCommonImageLoaderConfiguration();
         }
         if (apngComponentImageLoaderConfiguration == null) {
-            apngComponentImageLoaderConfiguration = getDefaultApngComponentImageLoaderConfiguration(this.context);
+            imageDownloader = new ApngImageDownloader(this.context, downloaderPoolSize);
+            apngComponentImageLoaderConfiguration = getDefaultApngComponentImageLoaderConfiguration(this.context, imageDownloader);
+        } else {
+            imageDownloader = null;
+            defaultDisplayImageOptions = null;
         }
         PngImageLoader.getInstance().init(commonImageLoaderConfiguration);
         super.init(apngComponentImageLoaderConfiguration);
+        if (!memoryCallbacksRegistered) {
+            this.context.registerComponentCallbacks(memoryCallbacks);
+            memoryCallbacksRegistered = true;
+        }
     }
 
     public void setEnableVerboseLog(boolean enableVerboseLog) {
@@ -60,6 +97,63 @@ public class ApngImageLoader extends ImageLoader {
         ApngImageLoader.enableDebugLog = enableDebugLog;
     }
 
+    /**
+     * Keeps the frames decoded in {@link ApngDrawable.DecodeMode#STREAM} mode on disk next to their image, see
+     * {@link com.sneva.spng.assist.ApngDecodedCache}, so that they are read back instead of decoded again by later
+     * processes. Costs 4 bytes per pixel of every frame in the working dir.
+     */
+    public void setEnableDecodedFrameCache(boolean enableDecodedFrameCache) {
+        ApngImageLoader.enableDecodedFrameCache = enableDecodedFrameCache;
+    }
+
+    /**
+     * Lets animations loaded from the network start playing while the rest of the file downloads, see
+     * {@link ApngImageDownloader}. UIL's disk cache reads images whole before decoding, so it is left out of the
+     * loads of network PNGs, which are kept in the working dir instead; other images keep it. With a configuration
+     * of your own, pass display options to the display methods for them to be used as a base.
+     */
+    public void setEnableStreaming(boolean enableStreaming) {
+        ApngImageLoader.enableStreaming = enableStreaming;
+    }
+
+    /**
+     * Number of threads the downloader of the default configuration processes copied images with,
+     * {@link ApngImageDownloader#DEFAULT_POOL_SIZE} by default. Has to be set before {@link #init(Context)}.
+     */
+    public void setDownloaderPoolSize(int poolSize) {
+        downloaderPoolSize = poolSize;
+    }
+
+    /**
+     * Downloader of the default configuration, exposing its queue depth and the copies in flight. Null when
+     * {@link #init(Context, ImageLoaderConfiguration, ImageLoaderConfiguration)} was given a configuration.
+     */
+    public ApngImageDownloader getImageDownloader() {
+        return imageDownloader;
+    }
+
+    /**
+     * Cache of composed frames, shared by all animations. Exposes its hit, miss and eviction counts.
+     */
+    public ApngFrameCache getFrameCache() {
+        return ApngFrameCache.getInstance();
+    }
+
+    /**
+     * Frames not composed nor shown because no drawable of their animation could be seen, e.g. after being
+     * scrolled out of the viewport or detached. Counted when an animation resumes or is released.
+     */
+    public long getSuppressedFrameTicks() {
+        return ApngClock.getInstance().getSuppressedTicks();
+    }
+
+    /**
+     * Byte budget of composed frames kept in memory, {@link ApngFrameCache#DEFAULT_MAX_SIZE} by default.
+     */
+    public void setFrameCacheSize(int maxSize) {
+        ApngFrameCache.getInstance().setMaxSize(maxSize);
+    }
+
     @Override
     public void displayImage(String uri, ImageView imageView) {
         displayApng(uri, imageView, null);
@@ -71,24 +165,42 @@ public class ApngImageLoader extends ImageLoader {
     }
 
     public void displayApng(String uri, ImageView imageView, ApngConfig config) {
-        super.displayImage(uri, imageView, new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, null)));
+        super.displayImage(uri, imageView, getDisplayOptions(uri, null), new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, null)));
     }
 
     public void displayApng(String uri, ImageView imageView, DisplayImageOptions options, ApngConfig config) {
-        super.displayImage(uri, imageView, options, new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, null)));
+        super.displayImage(uri, imageView, getDisplayOptions(uri, options), new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, null)));
     }
 
     public void displayApng(String uri, ImageView imageView, ApngConfig config, ApngListener apngListener) {
-        super.displayImage(uri, imageView, new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, apngListener)));
+        super.displayImage(uri, imageView, getDisplayOptions(uri, null), new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, apngListener)));
     }
 
     public void displayApng(String uri, ImageView imageView, DisplayImageOptions options, ApngConfig config, ApngListener apngListener) {
-        super.displayImage(uri, imageView, options, new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, apngListener)));
+        super.displayImage(uri, imageView, getDisplayOptions(uri, options), new ApngImageLoadingListener(context, Uri.parse(uri), getAutoPlayHandler(config, apngListener)));
+    }
+
+    /**
+     * Options of a load: with streaming on, network PNGs are left out of UIL's disk cache.
+     */
+    private DisplayImageOptions getDisplayOptions(String uri, DisplayImageOptions options) {
+        if (!enableStreaming || !isStreamable(uri)) return options;
+        DisplayImageOptions.Builder builder = new DisplayImageOptions.Builder();
+        DisplayImageOptions base = options != null ? options : defaultDisplayImageOptions;
+        if (base != null) builder.cloneFrom(base);
+        return builder.cacheOnDisk(false).build();
     }
 
-    private ImageLoaderConfiguration getDefaultApngComponentImageLoaderConfiguration(Context context) {
-        DisplayImageOptions defaultDisplayImageOptions = new DisplayImageOptions.Builder().cacheInMemory(false).cacheOnDisk(true).build();
-        return new ImageLoaderConfiguration.Builder(context).memoryCache(new LruMemoryCache(2 * 1024 * 1024)).memoryCacheSize(2 * 1024 * 1024).diskCacheSize(50 * 1024 * 1024).diskCacheFileCount(100).imageDownloader(new ApngImageDownloader(context)).defaultDisplayImageOptions(defaultDisplayImageOptions).build();
+    private static boolean isStreamable(String uri) {
+        Scheme scheme = Scheme.ofUri(uri);
+        if (scheme != Scheme.HTTP && scheme != Scheme.HTTPS) return false;
+        String path = Uri.parse(uri).getPath();
+        return path != null && path.endsWith(".png");
+    }
+
+    private ImageLoaderConfiguration getDefaultApngComponentImageLoaderConfiguration(Context context, ApngImageDownloader imageDownloader) {
+        defaultDisplayImageOptions = new DisplayImageOptions.Builder().cacheInMemory(false).cacheOnDisk(true).build();
+        return new ImageLoaderConfiguration.Builder(context).memoryCache(new LruMemoryCache(2 * 1024 * 1024)).memoryCacheSize(2 * 1024 * 1024).diskCacheSize(50 * 1024 * 1024).diskCacheFileCount(100).imageDownloader(imageDownloader).defaultDisplayImageOptions(defaultDisplayImageOptions).build();
     }
 
     private ImageLoaderConfiguration getDefaultCommonImageLoaderConfiguration() {
@@ -96,7 +208,7 @@ public class ApngImageLoader extends ImageLoader {
     }
 
     private ApngImageLoaderCallback getAutoPlayHandler(final ApngConfig config, final ApngListener apngListener) {
-        if (config == null || !config.autoPlay) {
+        if (config == null || (!config.autoPlay && config.bitmapConfig == null)) {
             return null;
         } else {
             return new ApngImageLoaderCallback() {
@@ -105,6 +217,8 @@ public class ApngImageLoader extends ImageLoader {
                     if (!success) return;
                     ApngDrawable apngDrawable = ApngDrawable.getFromView(view);
                     if (apngDrawable == null) return;
+                    apngDrawable.setBitmapConfig(config.bitmapConfig);
+                    if (!config.autoPlay) return;
                     apngDrawable.setApngListener(apngListener);
                     if (config.numPlays > 0) apngDrawable.setNumPlays(config.numPlays);
                     apngDrawable.setShowLastFrameOnStop(config.showLastFrameOnStop);
@@ -118,10 +232,16 @@ public class ApngImageLoader extends ImageLoader {
         public int numPlays = 0;
         public boolean autoPlay = false;
         public boolean showLastFrameOnStop = false;
+        /** Pixel format of the composed frames, null to use RGB_565 for opaque animations and ARGB_8888 otherwise */
+        public Bitmap.Config bitmapConfig = null;
         public ApngConfig(int numPlays, boolean autoPlay, boolean showLastFrameOnStop) {
             this.numPlays = numPlays;
             this.autoPlay = autoPlay;
             this.showLastFrameOnStop = showLastFrameOnStop;
         }
+        public ApngConfig(int numPlays, boolean autoPlay, boolean showLastFrameOnStop, Bitmap.Config bitmapConfig) {
+            this(numPlays, autoPlay, showLastFrameOnStop);
+            this.bitmapConfig = bitmapConfig;
+        }
     }
 }
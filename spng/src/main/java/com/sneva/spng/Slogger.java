@@ -3,29 +3,72 @@ package com.sneva.spng;
 import android.util.Log;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs to logcat, System.out and a file without blocking the caller: records are put in a lock-free ring and
+ * formatted and written by one background thread, in order. Nothing is formatted when every output is off.
+ * <p>
+ * Arguments are formatted after the call returns, so mutable ones should be passed as their current value.
+ * When the ring is full, records are dropped and counted in the log, errors after waiting a little for room.
+ * <p>
+ * Records are tagged with the calling class and method only if {@link #setEnableCallSite(boolean)} is on, as
+ * finding the caller takes a stack trace on every call.
+ * <p>
+ * The log file is appended to through one channel kept open, and rotated once it grows past its maximum size:
+ * {@code name} becomes {@code name.1}, {@code name.1} becomes {@code name.2} and so on.
+ */
 public class Slogger {
 
     private static final int STACKTRACE_LIMIT = 50;
-
-    private static String sLogFilePath;
-    private static String sLogFileName;
-
-    private static boolean sEnableLogcat = true;
-    private static boolean sEnableSystemOut = false;
-    private static boolean sEnableFileLog = false;
+    private static final int RING_SIZE = 1024;
+    private static final int FILE_BUFFER_SIZE = 8 * 1024;
+    private static final String TAG = "Slogger";
+    private static final long ERROR_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FLUSH_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(2);
+    private static final long PARK_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static volatile String sLogFilePath;
+    private static volatile String sLogFileName;
+    private static volatile long sLogFileMaxSize = 2 * 1024 * 1024;
+    private static volatile int sLogFileBackups = 3;
+
+    private static volatile boolean sEnableLogcat = true;
+    private static volatile boolean sEnableSystemOut = false;
+    private static volatile boolean sEnableFileLog = false;
+    private static volatile boolean sEnableCallSite = false;
 
     public static final DateFormat sFileLogDateFormat = new SimpleDateFormat("yyyy-dd-MM HH:mm:ss.SSS", Locale.ENGLISH);
 
+    // Multiple producers claim slots by moving the tail, the writer thread alone moves the head
+    private static final AtomicReferenceArray<Record> sRing = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong sTail = new AtomicLong();
+    private static final AtomicLong sHead = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    private static final AtomicBoolean sWriterStarted = new AtomicBoolean();
+    private static volatile Thread sWriterThread;
+    private static volatile boolean sWriterWaiting;
+    // Notified by the writer when it runs out of records
+    private static final Object sIdleLock = new Object();
+
     public static enum LogType {
         ERROR,
         WARNING,
@@ -34,6 +77,24 @@ public class Slogger {
         VERBOSE;
     }
 
+    private static class Record {
+        final LogType level;
+        final String format;
+        final Object[] args;
+        final Throwable error;
+        // Its stack trace is only walked by the writer, to find the caller; null unless call sites are enabled
+        final Throwable callSite;
+        final long time = System.currentTimeMillis();
+
+        Record(LogType level, String format, Object[] args, Throwable error, Throwable callSite) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+            this.error = error;
+            this.callSite = callSite;
+        }
+    }
+
     public static void setEnableLogCat(boolean enable) {
         sEnableLogcat = enable;
     }
@@ -43,15 +104,31 @@ public class Slogger {
     }
 
     public static void setEnableFileLog(boolean enable, String path, String fileName) {
-        sEnableFileLog = enable;
         if (enable && path != null && fileName != null) {
-            sLogFilePath = path.trim();
-            sLogFileName = fileName.trim();
-
-            if (!sLogFilePath.endsWith("/")) {
-                sLogFilePath = sLogFilePath + "/";
+            String logFilePath = path.trim();
+            if (!logFilePath.endsWith("/")) {
+                logFilePath = logFilePath + "/";
             }
+            sLogFilePath = logFilePath;
+            sLogFileName = fileName.trim();
         }
+        sEnableFileLog = enable;
+    }
+
+    /**
+     * @param maxSize size in bytes past which the log file is rotated
+     * @param backups number of rotated files kept besides the log file
+     */
+    public static void setFileLogRotation(long maxSize, int backups) {
+        sLogFileMaxSize = maxSize;
+        sLogFileBackups = backups;
+    }
+
+    /**
+     * Tags records with the class and method logging them, at the cost of a stack trace per call.
+     */
+    public static void setEnableCallSite(boolean enable) {
+        sEnableCallSite = enable;
     }
 
     public static String getLogFilePaht() {
@@ -62,170 +139,284 @@ public class Slogger {
         return sLogFileName;
     }
 
-    public static synchronized void v(String format, Object... args) {
-        String msg = String.format(format, args);
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.v(tag, msg);
-        if (sEnableSystemOut) System.out.println(msg);
-        if (sEnableFileLog) writeLogToFile(LogType.VERBOSE, tag, msg);
+    public static void v(String format, Object... args) {
+        log(LogType.VERBOSE, format, args, null);
     }
 
-    public static synchronized void v(String msg, Throwable e) {
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-
-        if (sEnableLogcat) Log.v(tag, msg, e);
-        if (sEnableSystemOut) { System.out.println(msg); e.printStackTrace(); }
-        if (sEnableFileLog) writeLogToFile(LogType.VERBOSE, tag, msg, e);
+    public static void v(String msg, Throwable e) {
+        log(LogType.VERBOSE, msg, null, e);
     }
 
-    public static synchronized void d(String format, Object... args) {
-        String msg = String.format(format, args);
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.d(tag, msg);
-        if (sEnableSystemOut) System.out.println(msg);
-        if (sEnableFileLog) writeLogToFile(LogType.DEBUG, tag, msg);
+    public static void d(String format, Object... args) {
+        log(LogType.DEBUG, format, args, null);
     }
 
-    public static synchronized void d(String msg, Throwable e) {
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.d(tag, msg, e);
-        if (sEnableSystemOut) { System.out.println(msg); e.printStackTrace(); }
-        if (sEnableFileLog) writeLogToFile(LogType.DEBUG, tag, msg, e);
+    public static void d(String msg, Throwable e) {
+        log(LogType.DEBUG, msg, null, e);
     }
 
-    public static synchronized void i(String format, Object... args) {
-        String msg = String.format(format, args);
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
+    public static void i(String format, Object... args) {
+        log(LogType.INFO, format, args, null);
+    }
 
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.i(tag, msg);
-        if (sEnableSystemOut) System.out.println(msg);
-        if (sEnableFileLog) writeLogToFile(LogType.INFO, tag, msg);
+    public static void i(String msg, Throwable e) {
+        log(LogType.INFO, msg, null, e);
     }
 
-    public static synchronized void i(String msg, Throwable e) {
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.i(tag, msg, e);
-        if (sEnableSystemOut) { System.out.println(msg); e.printStackTrace(); }
-        if (sEnableFileLog) writeLogToFile(LogType.INFO, tag, msg, e);
+    public static void w(String format, Object... args) {
+        log(LogType.WARNING, format, args, null);
     }
 
-    public static synchronized void w(String format, Object... args) {
-        String msg = String.format(format, args);
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.w(tag, msg);
-        if (sEnableSystemOut) System.out.println(msg);
-        if (sEnableFileLog) writeLogToFile(LogType.WARNING, tag, msg);
+    public static void w(String msg, Throwable e) {
+        log(LogType.WARNING, msg, null, e);
     }
 
-    public static synchronized void w(String msg, Throwable e) {
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
-        }
-        if (sEnableLogcat) Log.w(tag, msg, e);
-        if (sEnableSystemOut) { System.out.println(msg); e.printStackTrace(); }
-        if (sEnableFileLog) writeLogToFile(LogType.WARNING, tag, msg, e);
+    public static void e(String format, Object... args) {
+        log(LogType.ERROR, format, args, null);
     }
 
-    public static synchronized void e(String format, Object... args) {
-        String msg = String.format(format, args);
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
+    public static void e(String msg, Throwable e) {
+        log(LogType.ERROR, msg, null, e);
+    }
 
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
+    /**
+     * Blocks until every record logged so far has been written, e.g. before the log file is read, or for at
+     * most two seconds.
+     */
+    public static void flush() {
+        long target = sTail.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NS;
+        synchronized (sIdleLock) {
+            // The writer writes the file out before waiting for more
+            while ((sHead.get() < target || !sWriterWaiting) && sWriterThread != null) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return;
+                LockSupport.unpark(sWriterThread);
+                try {
+                    sIdleLock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
-
-        if (sEnableLogcat) Log.e(tag, msg);
-        if (sEnableSystemOut) System.out.println(msg);
-        if (sEnableFileLog) writeLogToFile(LogType.ERROR, tag, msg);
     }
 
-    public static synchronized void e(String msg, Throwable e) {
-        String tag = null;
-        StackTraceElement element = getStackTraceElement();
-        if (element != null) {
-            tag = getTag(element);
-            msg = getPrettyLog(element, msg);
+    private static void log(LogType level, String format, Object[] args, Throwable error) {
+        if (!sEnableLogcat && !sEnableSystemOut && !sEnableFileLog) return;
+        Record record = new Record(level, format, args, error, sEnableCallSite ? new Throwable() : null);
+        long deadline = 0;
+        boolean waiting = false;
+        while (true) {
+            long tail = sTail.get();
+            if (tail - sHead.get() >= RING_SIZE) {
+                if (level == LogType.ERROR) {
+                    // Errors wait a little for room rather than being dropped at once
+                    long now = System.nanoTime();
+                    if (!waiting) {
+                        waiting = true;
+                        deadline = now + ERROR_WAIT_NS;
+                    }
+                    if (deadline - now > 0) {
+                        LockSupport.unpark(sWriterThread);
+                        LockSupport.parkNanos(PARK_NS);
+                        continue;
+                    }
+                }
+                sDropped.incrementAndGet();
+                return;
+            } else if (sTail.compareAndSet(tail, tail + 1)) {
+                sRing.set((int) (tail % RING_SIZE), record);
+                break;
+            }
+        }
+        if (sWriterStarted.compareAndSet(false, true)) {
+            startWriter();
+        } else if (sWriterWaiting) {
+            LockSupport.unpark(sWriterThread);
         }
-        if (sEnableLogcat) Log.e(tag, msg, e);
-        if (sEnableSystemOut) { System.out.println(msg); e.printStackTrace(); }
-        if (sEnableFileLog) writeLogToFile(LogType.ERROR, tag, msg, e);
     }
 
-    private static synchronized void writeLogToFile(LogType level, String tag, String msg, Throwable e) {
-        String stacktrace = getStackTraceLog(msg, e);
-        writeLogToFile(level, tag, stacktrace);
+    private static void startWriter() {
+        Thread thread = new Thread(new Writer(), "slogger");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        sWriterThread = thread;
+        thread.start();
     }
 
-    private static synchronized void writeLogToFile(LogType level, String tag, String msg) {
-        if (sLogFilePath != null && !sLogFilePath.equals("") && sLogFileName != null && !sLogFileName.equals("")) {
-
-            File f = new File(sLogFilePath);
-            if (!f.exists()) {
+    /**
+     * Takes the records in order, writing the log file out whenever the ring runs empty.
+     */
+    private static class Writer implements Runnable {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+        private File file;
+        private FileChannel channel;
+        private long fileSize;
+
+        @Override
+        public void run() {
+            while (true) {
+                long head = sHead.get();
+                int slot = (int) (head % RING_SIZE);
+                Record record = sRing.get(slot);
+                if (record == null) {
+                    if (head < sTail.get()) {
+                        // Claimed but not stored yet
+                        LockSupport.parkNanos(PARK_NS);
+                        continue;
+                    }
+                    flushFile();
+                    sWriterWaiting = true;
+                    synchronized (sIdleLock) {
+                        sIdleLock.notifyAll();
+                    }
+                    if (sHead.get() == sTail.get()) LockSupport.park();
+                    sWriterWaiting = false;
+                    continue;
+                }
+                sRing.set(slot, null);
                 try {
-                    f.mkdirs();
-                } catch (SecurityException e) {
+                    long dropped = sDropped.getAndSet(0);
+                    if (dropped > 0) {
+                        write(new Record(LogType.WARNING, "%d log records dropped", new Object[]{dropped}, null, null));
+                    }
+                    write(record);
+                } catch (Throwable t) {
+                    // A record failing to be written, e.g. on an argument's toString(), must not stop the writer
+                    // and leave the producers waiting for room
+                }
+                sHead.set(head + 1);
+            }
+        }
+
+        private void write(Record record) {
+            String msg = record.args == null ? record.format : format(record.format, record.args);
+            String tag = TAG;
+            StackTraceElement element = getCaller(record.callSite);
+            if (element != null) {
+                tag = getTag(element);
+                msg = getPrettyLog(element, msg);
+            }
+            if (sEnableLogcat) writeLogcat(record.level, tag, msg, record.error);
+            if (sEnableSystemOut) {
+                System.out.println(msg);
+                if (record.error != null) record.error.printStackTrace();
+            }
+            if (sEnableFileLog) {
+                if (record.error != null) msg = getStackTraceLog(msg, record.error);
+                writeLogToFile(getLogDisplay(record.level, tag, msg, record.time));
+            }
+        }
 
+        private void writeLogToFile(String log) {
+            String path = sLogFilePath;
+            String name = sLogFileName;
+            if (path == null || path.equals("") || name == null || name.equals("")) return;
+            File target = new File(path + name);
+            try {
+                if (!target.equals(file)) openFile(target);
+                CharBuffer chars = CharBuffer.wrap(log);
+                while (true) {
+                    CoderResult result = encoder.encode(chars, buffer, true);
+                    if (!result.isOverflow()) break;
+                    flushFile();
+                }
+                if (fileSize + buffer.position() > sLogFileMaxSize) {
+                    rotateFile();
                 }
+            } catch (IOException e) {
+                if (sEnableLogcat) Log.e(TAG, "Error: " + e.toString());
+                closeFile();
+            } finally {
+                encoder.reset();
             }
+        }
 
-            if (f.canWrite()) {
-                String log = getLogDisplay(level, tag, msg);
-                f = new File(sLogFilePath + sLogFileName);
-                try {
-                    BufferedReader reader = new BufferedReader(new StringReader(log), 256);
-                    BufferedWriter writer = new BufferedWriter(new FileWriter(f, true), 256);
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        writer.append(line);
-                        writer.append("\r\n");
-                    }
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e) {
+        private void openFile(File target) throws IOException {
+            closeFile();
+            File dir = target.getParentFile();
+            if (dir != null && !dir.exists()) dir.mkdirs();
+            channel = new FileOutputStream(target, true).getChannel();
+            fileSize = channel.size();
+            file = target;
+        }
 
+        /**
+         * Writes out what is buffered, then moves the file to the first backup once it is too large.
+         */
+        private void rotateFile() throws IOException {
+            flushFile();
+            if (fileSize <= sLogFileMaxSize) return;
+            File target = file;
+            closeFile();
+            int backups = sLogFileBackups;
+            new File(target.getPath() + "." + backups).delete();
+            for (int i = backups - 1; i >= 1; i--) {
+                new File(target.getPath() + "." + i).renameTo(new File(target.getPath() + "." + (i + 1)));
+            }
+            if (backups > 0) {
+                target.renameTo(new File(target.getPath() + ".1"));
+            } else {
+                target.delete();
+            }
+            openFile(target);
+        }
+
+        private void flushFile() {
+            if (channel == null) {
+                buffer.clear();
+                return;
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    fileSize += channel.write(buffer);
                 }
+            } catch (IOException e) {
+                if (sEnableLogcat) Log.e(TAG, "Error: " + e.toString());
+                closeFile();
             }
+            buffer.clear();
+        }
+
+        private void closeFile() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            file = null;
+        }
+    }
+
+    private static String format(String format, Object[] args) {
+        try {
+            return String.format(format, args);
+        } catch (RuntimeException e) {
+            return format;
+        }
+    }
+
+    private static void writeLogcat(LogType level, String tag, String msg, Throwable e) {
+        switch (level) {
+        case ERROR:
+            if (e == null) Log.e(tag, msg); else Log.e(tag, msg, e);
+            break;
+        case WARNING:
+            if (e == null) Log.w(tag, msg); else Log.w(tag, msg, e);
+            break;
+        case DEBUG:
+            if (e == null) Log.d(tag, msg); else Log.d(tag, msg, e);
+            break;
+        case INFO:
+            if (e == null) Log.i(tag, msg); else Log.i(tag, msg, e);
+            break;
+        case VERBOSE:
+            if (e == null) Log.v(tag, msg); else Log.v(tag, msg, e);
+            break;
         }
     }
 
@@ -253,15 +444,20 @@ public class Slogger {
     }
 
     public static String getLogDisplay(LogType level, String tag, String msg) {
+        return getLogDisplay(level, tag, msg, System.currentTimeMillis());
+    }
+
+    private static String getLogDisplay(LogType level, String tag, String msg, long time) {
         StringBuilder builder = new StringBuilder();
         try {
             BufferedReader reader = new BufferedReader(new StringReader(msg), 256);
-            Date date = new Date();
-            date.setTime(System.currentTimeMillis());
-            String time = sFileLogDateFormat.format(date);
+            String date;
+            synchronized (sFileLogDateFormat) {
+                date = sFileLogDateFormat.format(new Date(time));
+            }
             String line;
             while ((line = reader.readLine()) != null) {
-                builder.append(String.format("%s: ", time));
+                builder.append(String.format("%s: ", date));
                 builder.append(String.format("%s/%s(%d): ", level, tag, android.os.Process.myPid()));
                 builder.append(line);
                 builder.append("\r\n");
@@ -270,13 +466,16 @@ public class Slogger {
         return builder.toString();
     }
 
-    private static StackTraceElement getStackTraceElement() {
-        StackTraceElement element = null;
-        StackTraceElement[] elements = Thread.currentThread().getStackTrace();
-        if (elements != null && elements.length >= 5) {
-            element = elements[4];
+    /**
+     * The first frame outside of this class.
+     */
+    private static StackTraceElement getCaller(Throwable callSite) {
+        StackTraceElement[] elements = callSite == null ? null : callSite.getStackTrace();
+        if (elements == null) return null;
+        for (StackTraceElement element : elements) {
+            if (!element.getClassName().startsWith(Slogger.class.getName())) return element;
         }
-        return element;
+        return null;
     }
 
     private static String getTag(StackTraceElement element) {
@@ -293,4 +492,4 @@ public class Slogger {
         if (element == null) return msg;
         return String.format("%s # %s", element.getMethodName(), msg);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+package com.sneva.spng.assist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Names of the files images are copied to in the working dir, derived from their URI, and hashes of their
+ * content, used by {@link ApngDiskCache} to store an image served under several URIs once.
+ * <p>
+ * Both are 64-bit FNV-1a followed by the MurmurHash3 finalizer: fast, and more than enough to tell apart the
+ * images of one working dir. They are not meant to resist crafted collisions.
+ */
+public class ApngCacheKey {
+
+    private static final char[] HEX_ARRAY = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final int FILE_NAME_CACHE_CAPACITY = 256;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // URIs of recent loads to their file names, since every load asks for it more than once
+    private static final Map<String, String> sFileNames = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > FILE_NAME_CACHE_CAPACITY;
+        }
+    };
+
+    private ApngCacheKey() {
+
+    }
+
+    public static String getFileName(String imageUri) {
+        synchronized (sFileNames) {
+            String fileName = sFileNames.get(imageUri);
+            if (fileName == null) {
+                fileName = toHex(hash(imageUri)) + ".png";
+                sFileNames.put(imageUri, fileName);
+            }
+            return fileName;
+        }
+    }
+
+    public static long hash(CharSequence s) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Content hash of a whole file, the same {@link ContentHash} gives for its bytes.
+     */
+    public static long hashFile(File file) throws IOException {
+        ContentHash contentHash = new ContentHash();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                contentHash.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return contentHash.getValue();
+    }
+
+    /**
+     * Hashes content as it goes through, e.g. while it is copied.
+     */
+    public static class ContentHash {
+        private long h = FNV_OFFSET_BASIS;
+
+        public void update(byte[] buffer, int offset, int count) {
+            long h = this.h;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                h = (h ^ (buffer[i] & 0xFF)) * FNV_PRIME;
+            }
+            this.h = h;
+        }
+
+        /** Never 0, which stands for an unknown hash */
+        public long getValue() {
+            long value = mix(h);
+            return value == 0 ? 1 : value;
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String toHex(long value) {
+        char[] hexChars = new char[16];
+        for (int i = hexChars.length - 1; i >= 0; i--) {
+            hexChars[i] = HEX_ARRAY[(int) (value & 0x0F)];
+            value >>>= 4;
+        }
+        return new String(hexChars);
+    }
+}
@@ -0,0 +1,175 @@
+package com.sneva.spng.assist;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * Platform neutral APNG canvas: applies the fcTL blend and dispose operations frame after frame on an
+ * {@code int[]} of non-premultiplied ARGB colors, as produced by {@link ApngFrameDecoder}. Nothing here depends
+ * on android.graphics, so compositing can be tested and measured on a plain JVM.
+ * <p>
+ * The canvas always holds the output of the last composed frame. Besides it, the only buffer is the region
+ * saved for {@link PngChunkFCTL#APNG_DISPOSE_OP_PREVIOUS}, allocated once.
+ * <p>
+ * With a sample size above 1 the canvas is downsampled by that factor, keeping every {@code sampleSize}th pixel
+ * of the source canvas. A frame only covers the kept pixels inside it, and is expected decoded at the same
+ * positions, see {@link ApngFrameDecoder#decodeFrame(int, int[], int)}.
+ */
+public class ApngCanvas {
+
+    private final int width;
+    private final int height;
+    private final int sampleSize;
+    private final int[] pixels;
+    private final int[] saved;
+    private final int[] region = new int[4];
+
+    /**
+     * @param width      width of the source canvas
+     * @param height     height of the source canvas
+     * @param sampleSize power of two the canvas is downsampled by
+     */
+    public ApngCanvas(int width, int height, int sampleSize) {
+        this.width = ApngFrameDecoder.getSampledSize(width, sampleSize);
+        this.height = ApngFrameDecoder.getSampledSize(height, sampleSize);
+        this.sampleSize = sampleSize;
+        pixels = new int[this.width * this.height];
+        saved = new int[pixels.length];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * The canvas itself, row-major with {@link #getWidth()} as stride. Writing to it sets the output the next
+     * frame is composed over, e.g. to resume from a cached frame.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public IntBuffer getBuffer() {
+        return IntBuffer.wrap(pixels);
+    }
+
+    /**
+     * Has to be called before the first frame: the canvas and the saved region start fully transparent.
+     */
+    public void reset() {
+        Arrays.fill(pixels, 0);
+        Arrays.fill(saved, 0);
+    }
+
+    /**
+     * Composes a frame over the output of the previous one.
+     *
+     * @param previousFctl    fcTL of the previous frame, whose dispose operation is applied first, or null for the first frame
+     * @param frame           decoded sub-frame, row-major with its own sampled width as stride
+     * @param frameSampleSize sample size the sub-frame was decoded with; a size other than the canvas' is scaled
+     */
+    public void compose(PngChunkFCTL previousFctl, PngChunkFCTL fctl, int[] frame, int frameSampleSize) {
+        if (previousFctl == null) {
+            Arrays.fill(pixels, 0);
+        } else {
+            dispose(previousFctl);
+        }
+        getScaledRegion(region, fctl);
+        if (fctl.getDisposeOp() == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS) copyRegion(pixels, saved, region);
+        int left = region[0];
+        int top = region[1];
+        int regionWidth = region[2] - left;
+        int regionHeight = region[3] - top;
+        int frameWidth = ApngFrameDecoder.getSampledFrameSize(fctl.getxOff(), fctl.getWidth(), frameSampleSize);
+        boolean sameSampling = frameSampleSize == sampleSize;
+        boolean source = fctl.getBlendOp() == PngChunkFCTL.APNG_BLEND_OP_SOURCE;
+        for (int y = 0; y < regionHeight; y++) {
+            // A frame sampled otherwise is read at the pixel each canvas pixel stands for
+            int frameRow = (sameSampling ? y : toFrame(top + y, fctl.getyOff(), frameSampleSize)) * frameWidth;
+            int offset = (top + y) * width + left;
+            if (sameSampling) {
+                if (source) {
+                    System.arraycopy(frame, frameRow, pixels, offset, regionWidth);
+                } else {
+                    for (int x = 0; x < regionWidth; x++) {
+                        pixels[offset + x] = blendOver(frame[frameRow + x], pixels[offset + x]);
+                    }
+                }
+            } else {
+                for (int x = 0; x < regionWidth; x++) {
+                    int color = frame[frameRow + toFrame(left + x, fctl.getxOff(), frameSampleSize)];
+                    pixels[offset + x] = source ? color : blendOver(color, pixels[offset + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Region of a frame on this canvas as {left, top, right, bottom}, scaled down by the sample size: the kept
+     * pixels inside the frame, so that blending, disposing and restoring never touch a pixel outside of it.
+     */
+    public void getScaledRegion(int[] out, PngChunkFCTL fctl) {
+        out[0] = Math.min(ApngFrameDecoder.getSampledSize(fctl.getxOff(), sampleSize), width);
+        out[1] = Math.min(ApngFrameDecoder.getSampledSize(fctl.getyOff(), sampleSize), height);
+        out[2] = Math.max(Math.min(ApngFrameDecoder.getSampledSize(fctl.getxOff() + fctl.getWidth(), sampleSize), width), out[0]);
+        out[3] = Math.max(Math.min(ApngFrameDecoder.getSampledSize(fctl.getyOff() + fctl.getHeight(), sampleSize), height), out[1]);
+    }
+
+    /**
+     * Index in a frame decoded with {@code frameSampleSize} of the pixel a canvas coordinate stands for.
+     */
+    private int toFrame(int canvasCoordinate, int frameOffset, int frameSampleSize) {
+        int sourceCoordinate = canvasCoordinate * sampleSize - frameOffset;
+        return Math.max(0, sourceCoordinate - ApngFrameDecoder.getSampledOffset(frameOffset, frameSampleSize)) / frameSampleSize;
+    }
+
+    /**
+     * APNG_BLEND_OP_OVER of two non-premultiplied ARGB colors.
+     */
+    public static int blendOver(int src, int dst) {
+        int srcAlpha = src >>> 24;
+        if (srcAlpha == 0xFF) return src;
+        if (srcAlpha == 0) return dst;
+        int dstAlpha = dst >>> 24;
+        if (dstAlpha == 0) return src;
+        // Weights scaled by 255: the source's alpha and what shows through of the destination
+        int u = srcAlpha * 255;
+        int v = (255 - srcAlpha) * dstAlpha;
+        int alpha = u + v;
+        int r = (((src >> 16) & 0xFF) * u + ((dst >> 16) & 0xFF) * v) / alpha;
+        int g = (((src >> 8) & 0xFF) * u + ((dst >> 8) & 0xFF) * v) / alpha;
+        int b = ((src & 0xFF) * u + (dst & 0xFF) * v) / alpha;
+        return (alpha / 255) << 24 | r << 16 | g << 8 | b;
+    }
+
+    private void dispose(PngChunkFCTL fctl) {
+        switch (fctl.getDisposeOp()) {
+        case PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND:
+            getScaledRegion(region, fctl);
+            for (int y = region[1]; y < region[3]; y++) {
+                Arrays.fill(pixels, y * width + region[0], y * width + region[2], 0);
+            }
+            break;
+        case PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS:
+            getScaledRegion(region, fctl);
+            copyRegion(saved, pixels, region);
+            break;
+        }
+    }
+
+    private void copyRegion(int[] from, int[] to, int[] rect) {
+        for (int y = rect[1]; y < rect[3]; y++) {
+            System.arraycopy(from, y * width + rect[0], to, y * width + rect[0], rect[2] - rect[0]);
+        }
+    }
+}
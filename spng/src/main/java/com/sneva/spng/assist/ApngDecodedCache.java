@@ -0,0 +1,206 @@
+package com.sneva.spng.assist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Decoded frames of an APNG kept on disk next to it, so that a later process plays it without inflating and
+ * unfiltering again: the file is memory mapped and frames are copied straight out of it.
+ * <p>
+ * Frames are stored as decoded by {@link ApngFrameDecoder}, non-premultiplied ARGB with the sampled frame width
+ * as stride, for one sample size. The file starts with a versioned header recording the size and modification
+ * time of the source, so a replaced source or an older format is never read:
+ * <pre>
+ * int magic, int version, long sourceLength, long sourceLastModified, int sampleSize, int frameCount,
+ * frameCount x (long offset, int length), pixels
+ * </pre>
+ * Offsets are in bytes, -1 for a frame that was not stored, and lengths in pixels. Frame 0 may be missing since
+ * it is shown from the default image.
+ */
+public class ApngDecodedCache {
+
+    public static final String EXTENSION = ".frames";
+
+    private static final int MAGIC = 0x41504E46;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int TABLE_ENTRY_SIZE = 12;
+
+    private final IntBuffer pixels;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private ApngDecodedCache(IntBuffer pixels, long[] offsets, int[] lengths) {
+        this.pixels = pixels;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    public static File getFile(File sourceFile) {
+        return new File(sourceFile.getParent(), sourceFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Maps the decoded frames of a source, if they were stored for this version of it and this sample size.
+     * A file left by another version of the source is deleted.
+     *
+     * @return null if there are none
+     */
+    public static ApngDecodedCache open(File sourceFile, int sampleSize, int frameCount) throws IOException {
+        File file = getFile(sourceFile);
+        if (!file.isFile()) return null;
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping outlives the file being closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != sourceFile.length() || buffer.getLong(16) != sourceFile.lastModified()) {
+            file.delete();
+            return null;
+        }
+        if (buffer.getInt(24) != sampleSize || buffer.getInt(28) != frameCount) return null;
+        if (buffer.capacity() < HEADER_SIZE + (long) frameCount * TABLE_ENTRY_SIZE) throw new IOException("Truncated " + file.getPath());
+        long[] offsets = new long[frameCount];
+        int[] lengths = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            int entry = HEADER_SIZE + i * TABLE_ENTRY_SIZE;
+            offsets[i] = buffer.getLong(entry);
+            lengths[i] = buffer.getInt(entry + 8);
+            if (offsets[i] >= 0 && offsets[i] + lengths[i] * 4L > buffer.capacity()) {
+                throw new IOException("Truncated " + file.getPath());
+            }
+        }
+        return new ApngDecodedCache(buffer.asIntBuffer(), offsets, lengths);
+    }
+
+    /**
+     * Copies a stored frame into {@code argb}.
+     *
+     * @return false if the frame was not stored
+     */
+    public boolean read(int frameIndex, int[] argb) {
+        if (offsets[frameIndex] < 0) return false;
+        synchronized (pixels) {
+            pixels.position((int) (offsets[frameIndex] / 4));
+            pixels.get(argb, 0, lengths[frameIndex]);
+        }
+        return true;
+    }
+
+    /**
+     * Stores frames as they are decoded, in any order, into a temporary file that becomes the cache once every
+     * frame after the first is there. Safe to abort from another thread.
+     */
+    public static class Writer {
+        private final File sourceFile;
+        private final File tempFile;
+        private final int sampleSize;
+        private final long maxBytes;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final long sourceLength;
+        private final long sourceLastModified;
+        private RandomAccessFile raf;
+        private ByteBuffer buffer;
+        private long position;
+        private int missing;
+
+        /**
+         * @param maxBytes size above which the source is not worth caching, the writer then aborts itself
+         */
+        public Writer(File sourceFile, int sampleSize, int frameCount, long maxBytes) throws IOException {
+            this.sourceFile = sourceFile;
+            this.sampleSize = sampleSize;
+            this.maxBytes = maxBytes;
+            sourceLength = sourceFile.length();
+            sourceLastModified = sourceFile.lastModified();
+            // Animations of the same source at the same sample size may each have a writer
+            tempFile = File.createTempFile(sourceFile.getName() + EXTENSION + "-", ".tmp", sourceFile.getParentFile());
+            offsets = new long[frameCount];
+            lengths = new int[frameCount];
+            Arrays.fill(offsets, -1);
+            missing = frameCount - 1;
+            position = HEADER_SIZE + (long) frameCount * TABLE_ENTRY_SIZE;
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(0);
+        }
+
+        public synchronized boolean isComplete() {
+            return raf != null && missing == 0;
+        }
+
+        /**
+         * Stores the first {@code count} pixels of {@code argb} as a frame, unless it already is.
+         */
+        public synchronized void append(int frameIndex, int[] argb, int count) throws IOException {
+            if (raf == null || offsets[frameIndex] >= 0) return;
+            if (position + count * 4L > maxBytes) {
+                abort();
+                return;
+            }
+            if (buffer == null || buffer.capacity() < count * 4) buffer = ByteBuffer.allocate(count * 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(argb, 0, count);
+            buffer.limit(count * 4);
+            FileChannel channel = raf.getChannel();
+            channel.position(position);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            offsets[frameIndex] = position;
+            lengths[frameIndex] = count;
+            position += count * 4L;
+            if (frameIndex > 0) missing--;
+        }
+
+        /**
+         * Writes the header and moves the file in place.
+         *
+         * @return the cache file
+         */
+        public synchronized File commit() throws IOException {
+            if (raf == null) throw new IOException("Aborted");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * TABLE_ENTRY_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(sourceLength).putLong(sourceLastModified)
+                    .putInt(sampleSize).putInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                header.putLong(offsets[i]).putInt(lengths[i]);
+            }
+            header.flip();
+            FileChannel channel = raf.getChannel();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            raf.close();
+            raf = null;
+            File file = getFile(sourceFile);
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Can't rename " + tempFile.getPath());
+            }
+            return file;
+        }
+
+        public synchronized void abort() {
+            if (raf == null) return;
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            buffer = null;
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.sneva.spng.assist;
+
+import static com.sneva.spng.ApngImageLoader.enableDebugLog;
+import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
+
+import com.sneva.spng.Slogger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Size and recency accounting of a working dir, kept in memory and persisted in an append-only journal,
+ * so keeping the dir within its size never lists or sorts it. The dir is only scanned once, when no journal
+ * can be read.
+ * <p>
+ * An entry is a copied image together with the frame files extracted from it and its {@link ApngDecodedCache};
+ * entries are evicted as a whole, least recently used first, and never while in use.
+ * <p>
+ * Entries whose content hash is known are stored once: a copy holding the same content as another entry is
+ * deleted and its name kept as an alias of that entry, until the entry is evicted.
+ * <p>
+ * Journal lines are {@code P bytes frames frameBytes decodedBytes contentHash name} when an entry is written,
+ * {@code R name} when it is used, {@code D name} when it is removed and {@code A alias name} when a name becomes
+ * an alias of an entry. A content hash of 0 is unknown.
+ */
+public class ApngDiskCache {
+
+    private static final String JOURNAL_FILE = ".journal";
+    private static final String JOURNAL_TEMP_FILE = ".journal.tmp";
+    private static final String MAGIC = "apng-journal 3";
+    private static final int COMPARE_BUFFER_SIZE = 8 * 1024;
+    private static final int COMPACT_THRESHOLD = 2000;
+    private static final Pattern FRAME_FILE = Pattern.compile("(.+)_\\d{3,}(\\.[^.]*)?");
+
+    private static final Map<String, ApngDiskCache> sCaches = new HashMap<>();
+
+    private final File dir;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pinned = new HashMap<>();
+    // Alias to the name of the entry holding its content
+    private final Map<String, String> aliases = new HashMap<>();
+    // Content hash to the name of the entry holding it
+    private final Map<Long, String> contents = new HashMap<>();
+    private Writer journal;
+    private int redundantOps;
+    private long size;
+
+    private static class Entry {
+        long bytes;
+        int frames;
+        long frameBytes;
+        long decodedBytes;
+        long contentHash;
+
+        long getTotalBytes() {
+            return bytes + frameBytes + decodedBytes;
+        }
+    }
+
+    public static ApngDiskCache get(File dir) {
+        synchronized (sCaches) {
+            ApngDiskCache cache = sCaches.get(dir.getAbsolutePath());
+            if (cache == null) {
+                cache = new ApngDiskCache(dir);
+                sCaches.put(dir.getAbsolutePath(), cache);
+            }
+            return cache;
+        }
+    }
+
+    private ApngDiskCache(File dir) {
+        this.dir = dir;
+        try {
+            readJournal();
+        } catch (Exception e) {
+            if (enableDebugLog) Slogger.d("Rebuild journal: %s", e.toString());
+            entries.clear();
+            aliases.clear();
+            contents.clear();
+            size = 0;
+            rebuild();
+        }
+    }
+
+    /** Bytes held by all entries */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * The name of the entry holding the content copied under {@code name}: {@code name} itself unless it was
+     * found to be a duplicate.
+     */
+    public synchronized String resolve(String name) {
+        String target = aliases.get(name);
+        return target == null ? name : target;
+    }
+
+    /**
+     * Records a file copied into the dir, or its new size.
+     */
+    public synchronized void put(File file) {
+        put(file, 0);
+    }
+
+    /**
+     * Records a file copied into the dir with the hash of its content, see {@link ApngCacheKey.ContentHash}.
+     * If another entry holds the same content, the file is deleted and its name becomes an alias of that entry,
+     * unless it is in use.
+     *
+     * @return the file holding the content
+     */
+    public synchronized File put(File file, long contentHash) {
+        String name = file.getName();
+        String duplicate = contentHash == 0 ? null : contents.get(contentHash);
+        if (duplicate != null && !duplicate.equals(name) && !pinned.containsKey(name)
+                && isSameContent(file, new File(dir, duplicate))) {
+            remove(name);
+            if (file.delete()) ApngIndex.evict(file);
+            aliases.put(name, duplicate);
+            appendJournal("A " + name + " " + duplicate);
+            redundantOps++;
+            if (enableVerboseLog) Slogger.v("Same content as %s: %s", duplicate, name);
+            return new File(dir, duplicate);
+        }
+        aliases.remove(name);
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(name, entry);
+        }
+        size += file.length() - entry.bytes;
+        entry.bytes = file.length();
+        if (contentHash != 0) {
+            entry.contentHash = contentHash;
+            // A differing file with the same hash does not take over
+            if (duplicate == null) contents.put(contentHash, name);
+        }
+        writeEntry(name, entry);
+        return file;
+    }
+
+    private static boolean isSameContent(File a, File b) {
+        if (a.length() != b.length()) return false;
+        try {
+            InputStream inA = new FileInputStream(a);
+            try {
+                InputStream inB = new FileInputStream(b);
+                try {
+                    byte[] bufferA = new byte[COMPARE_BUFFER_SIZE];
+                    byte[] bufferB = new byte[COMPARE_BUFFER_SIZE];
+                    int n;
+                    while ((n = inA.read(bufferA)) > 0) {
+                        int filled = 0;
+                        while (filled < n) {
+                            int m = inB.read(bufferB, filled, n - filled);
+                            if (m < 0) return false;
+                            filled += m;
+                        }
+                        for (int i = 0; i < n; i++) {
+                            if (bufferA[i] != bufferB[i]) return false;
+                        }
+                    }
+                    return inB.read() < 0;
+                } finally {
+                    inB.close();
+                }
+            } finally {
+                inA.close();
+            }
+        } catch (IOException e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Records the frame files extracted from a copied file, named after {@link ApngExtractFrames#getFileName(File, int)}.
+     */
+    public synchronized void putFrames(File file, int frames) {
+        Entry entry = entries.get(file.getName());
+        if (entry == null) {
+            entry = new Entry();
+            entry.bytes = file.length();
+            size += entry.bytes;
+            entries.put(file.getName(), entry);
+        }
+        long frameBytes = 0;
+        for (int i = 0; i < frames; i++) {
+            frameBytes += new File(dir, ApngExtractFrames.getFileName(file, i)).length();
+        }
+        size += frameBytes - entry.frameBytes;
+        entry.frames = frames;
+        entry.frameBytes = frameBytes;
+        writeEntry(file.getName(), entry);
+    }
+
+    /**
+     * Records the {@link ApngDecodedCache} written for a copied file, or its new size.
+     */
+    public synchronized void putDecoded(File file) {
+        Entry entry = entries.get(file.getName());
+        if (entry == null) {
+            entry = new Entry();
+            entry.bytes = file.length();
+            size += entry.bytes;
+            entries.put(file.getName(), entry);
+        }
+        long decodedBytes = ApngDecodedCache.getFile(file).length();
+        size += decodedBytes - entry.decodedBytes;
+        entry.decodedBytes = decodedBytes;
+        writeEntry(file.getName(), entry);
+    }
+
+    /**
+     * Marks an entry as recently used.
+     */
+    public synchronized void touch(File file) {
+        if (entries.get(file.getName()) == null) return;
+        appendJournal("R " + file.getName());
+        redundantOps++;
+    }
+
+    /**
+     * Keeps an entry from being evicted until {@link #unpin(File)}.
+     */
+    public synchronized void pin(File file) {
+        Integer count = pinned.get(file.getName());
+        pinned.put(file.getName(), count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(File file) {
+        Integer count = pinned.get(file.getName());
+        if (count == null) return;
+        if (count > 1) {
+            pinned.put(file.getName(), count - 1);
+        } else {
+            pinned.remove(file.getName());
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the dir holds at most {@code maxSize} bytes.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        if (enableVerboseLog) Slogger.v("checkCacheSize: %d", size);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            String name = eldest.getKey();
+            if (pinned.containsKey(name)) continue;
+            iterator.remove();
+            delete(name, eldest.getValue());
+        }
+        compactIfNeeded();
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) delete(name, entry);
+    }
+
+    /**
+     * Deletes the files of an entry just taken out of {@link #entries}.
+     */
+    private void delete(String name, Entry entry) {
+        // Journal first, so a half deleted entry is never brought back with missing files
+        appendJournal("D " + name);
+        redundantOps += 2;
+        size -= entry.getTotalBytes();
+        forgetContent(name, entry);
+        File file = new File(dir, name);
+        for (int i = 0; i < entry.frames; i++) {
+            new File(dir, ApngExtractFrames.getFileName(file, i)).delete();
+        }
+        ApngDecodedCache.getFile(file).delete();
+        boolean isSuccess = file.delete();
+        ApngIndex.evict(file);
+        if (enableVerboseLog) Slogger.v("Delete(%s): %s", isSuccess ? "success" : "failed", file.getPath());
+    }
+
+    /**
+     * Forgets the content hash and the aliases of an entry that is gone.
+     */
+    private void forgetContent(String name, Entry entry) {
+        if (entry.contentHash != 0 && name.equals(contents.get(entry.contentHash))) contents.remove(entry.contentHash);
+        aliases.values().removeAll(Collections.singleton(name));
+    }
+
+    private void writeEntry(String name, Entry entry) {
+        appendJournal(getPutLine(name, entry));
+        redundantOps++;
+        compactIfNeeded();
+    }
+
+    private static String getPutLine(String name, Entry entry) {
+        return "P " + entry.bytes + " " + entry.frames + " " + entry.frameBytes + " " + entry.decodedBytes + " "
+                + entry.contentHash + " " + name;
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dir, JOURNAL_FILE)));
+        try {
+            if (!MAGIC.equals(reader.readLine())) throw new IOException("Unknown journal format");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Entry names go last since they may contain spaces, aliases are always named by ApngCacheKey
+                String[] parts = line.startsWith("P ") ? line.split(" ", 7) : line.startsWith("A ") ? line.split(" ", 3) : line.split(" ", 2);
+                String name = parts[parts.length - 1];
+                switch (parts[0]) {
+                    case "P":
+                        Entry entry = entries.remove(name);
+                        if (entry != null) size -= entry.getTotalBytes();
+                        entry = new Entry();
+                        entry.bytes = Long.parseLong(parts[1]);
+                        entry.frames = Integer.parseInt(parts[2]);
+                        entry.frameBytes = Long.parseLong(parts[3]);
+                        entry.decodedBytes = Long.parseLong(parts[4]);
+                        entry.contentHash = Long.parseLong(parts[5]);
+                        entries.put(name, entry);
+                        aliases.remove(name);
+                        if (entry.contentHash != 0) contents.put(entry.contentHash, name);
+                        size += entry.getTotalBytes();
+                        break;
+                    case "R":
+                        entries.get(name);
+                        break;
+                    case "D":
+                        Entry removed = entries.remove(name);
+                        if (removed != null) {
+                            size -= removed.getTotalBytes();
+                            forgetContent(name, removed);
+                        }
+                        break;
+                    case "A":
+                        if (entries.containsKey(name)) aliases.put(parts[1], name);
+                        break;
+                    default:
+                        throw new IOException("Corrupt journal line: " + line);
+                }
+                redundantOps++;
+            }
+            redundantOps -= entries.size() + aliases.size();
+        } catch (RuntimeException e) {
+            throw new IOException(e.toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * One scan of the dir, oldest files first, grouping extracted frame files and decoded frames with the file
+     * they come from. Those whose image is gone make entries of their own.
+     */
+    private void rebuild() {
+        File[] files = AssistUtil.listFilesSortingByDate(dir);
+        if (files == null) files = new File[0];
+        for (File file : files) {
+            if (!file.isFile() || isInternalFile(file.getName()) || getSourceName(file.getName()) != null) continue;
+            Entry entry = new Entry();
+            entry.bytes = file.length();
+            entries.put(file.getName(), entry);
+            size += entry.bytes;
+        }
+        for (File file : files) {
+            String sourceName = file.isFile() ? getSourceName(file.getName()) : null;
+            if (sourceName == null) continue;
+            Entry entry = entries.get(sourceName);
+            if (file.getName().endsWith(ApngDecodedCache.EXTENSION)) {
+                entry.decodedBytes += file.length();
+            } else {
+                entry.frames++;
+                entry.frameBytes += file.length();
+            }
+            size += file.length();
+        }
+        writeJournal();
+    }
+
+    /**
+     * Name of the file a frame file was extracted from or frames were decoded from, if it is one and that file
+     * exists.
+     */
+    private String getSourceName(String name) {
+        if (name.endsWith(ApngDecodedCache.EXTENSION)) {
+            String sourceName = name.substring(0, name.length() - ApngDecodedCache.EXTENSION.length());
+            return new File(dir, sourceName).isFile() ? sourceName : null;
+        }
+        Matcher matcher = FRAME_FILE.matcher(name);
+        if (!matcher.matches()) return null;
+        String sourceName = matcher.group(1) + (matcher.group(2) == null ? "" : matcher.group(2));
+        return new File(dir, sourceName).isFile() ? sourceName : null;
+    }
+
+    private static boolean isInternalFile(String name) {
+        return name.startsWith(JOURNAL_FILE) || name.endsWith(".tmp");
+    }
+
+    private void compactIfNeeded() {
+        if (redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries.size()) writeJournal();
+    }
+
+    private void writeJournal() {
+        closeJournal();
+        File tempFile = new File(dir, JOURNAL_TEMP_FILE);
+        try {
+            Writer writer = new BufferedWriter(new FileWriter(tempFile));
+            try {
+                writer.write(MAGIC + "\n");
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writer.write(getPutLine(e.getKey(), e.getValue()) + "\n");
+                }
+                for (Map.Entry<String, String> e : aliases.entrySet()) {
+                    writer.write("A " + e.getKey() + " " + e.getValue() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(new File(dir, JOURNAL_FILE))) throw new IOException("Can't replace journal");
+            redundantOps = 0;
+        } catch (IOException e) {
+            Slogger.e("Error: %s", e.toString());
+        }
+    }
+
+    private void appendJournal(String line) {
+        try {
+            if (journal == null) journal = new BufferedWriter(new FileWriter(new File(dir, JOURNAL_FILE), true));
+            journal.write(line);
+            journal.write('\n');
+            journal.flush();
+        } catch (IOException e) {
+            Slogger.e("Error: %s", e.toString());
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException ignored) {
+        }
+        journal = null;
+    }
+}
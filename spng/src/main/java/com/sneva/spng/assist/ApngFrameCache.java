@@ -0,0 +1,220 @@
+package com.sneva.spng.assist;
+
+import android.graphics.Bitmap;
+
+import com.sneva.spng.Slogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
+
+/**
+ * Memory cache of composed animation frames, bounded by a byte budget shared by all animations.
+ * <p>
+ * Frames of a looping animation are needed again in play order, so when the budget is exceeded the frame
+ * whose next use is the furthest away from its animation's current position is evicted first, i.e. the one
+ * that was just shown. Frames marked as kept (keyframes, frames restored by a dispose chain) are only evicted
+ * once no other frame is left.
+ */
+public class ApngFrameCache {
+
+    public static final int DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    private static volatile ApngFrameCache singleton;
+
+    private final List<Frames> framesList = new ArrayList<>();
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public static ApngFrameCache getInstance() {
+        if (singleton == null) {
+            synchronized (ApngFrameCache.class) {
+                if (singleton == null) {
+                    singleton = new ApngFrameCache();
+                }
+            }
+        }
+        return singleton;
+    }
+
+    protected ApngFrameCache() { /*Singleton*/ }
+
+    /**
+     * Registers the frames of one animation.
+     */
+    public synchronized Frames register(int frameCount) {
+        Frames frames = new Frames(frameCount);
+        framesList.add(frames);
+        return frames;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    /** Bytes currently held */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized void clear() {
+        for (Frames frames : framesList) {
+            frames.removeAll();
+        }
+    }
+
+    private void trimToSize() {
+        while (size > maxSize) {
+            Frames victimFrames = null;
+            int victimIndex = -1;
+            int victimRank = -1;
+            for (Frames frames : framesList) {
+                int index = frames.victim();
+                if (index < 0) continue;
+                int rank = frames.rank(index);
+                if (rank > victimRank) {
+                    victimFrames = frames;
+                    victimIndex = index;
+                    victimRank = rank;
+                }
+            }
+            if (victimFrames == null) break;
+            if (enableVerboseLog) Slogger.v("Evict frame %d", victimIndex);
+            victimFrames.remove(victimIndex);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Cached frames of one animation. Has to be unregistered with {@link #release()} once the animation is gone.
+     */
+    public class Frames {
+        private final Bitmap[] bitmaps;
+        private final boolean[] keep;
+        // Indexes of the cached frames, so that the victim is found without scanning every frame
+        private final TreeSet<Integer> evictable = new TreeSet<>();
+        private final TreeSet<Integer> kept = new TreeSet<>();
+        private int position;
+
+        private Frames(int frameCount) {
+            bitmaps = new Bitmap[frameCount];
+            keep = new boolean[frameCount];
+        }
+
+        public Bitmap get(int frameIndex) {
+            synchronized (ApngFrameCache.this) {
+                Bitmap bitmap = bitmaps[frameIndex];
+                if (bitmap == null) {
+                    missCount++;
+                } else {
+                    hitCount++;
+                }
+                return bitmap;
+            }
+        }
+
+        /**
+         * Same as {@link #get(int)} without counting a hit or a miss.
+         */
+        public Bitmap peek(int frameIndex) {
+            synchronized (ApngFrameCache.this) {
+                return bitmaps[frameIndex];
+            }
+        }
+
+        /**
+         * @param keepFrame whether the frame should outlive the other frames under memory pressure
+         */
+        public void put(int frameIndex, Bitmap bitmap, boolean keepFrame) {
+            synchronized (ApngFrameCache.this) {
+                remove(frameIndex);
+                bitmaps[frameIndex] = bitmap;
+                keep[frameIndex] = keepFrame;
+                (keepFrame ? kept : evictable).add(frameIndex);
+                size += bitmap.getByteCount();
+                trimToSize();
+            }
+        }
+
+        /**
+         * Tells the cache which frame the animation currently shows.
+         */
+        public void setPosition(int frameIndex) {
+            synchronized (ApngFrameCache.this) {
+                position = frameIndex;
+            }
+        }
+
+        /**
+         * Drops every frame, which the animation composes again when it needs them.
+         */
+        public void clear() {
+            synchronized (ApngFrameCache.this) {
+                removeAll();
+            }
+        }
+
+        public void release() {
+            synchronized (ApngFrameCache.this) {
+                removeAll();
+                framesList.remove(this);
+            }
+        }
+
+        private void remove(int frameIndex) {
+            if (bitmaps[frameIndex] == null) return;
+            size -= bitmaps[frameIndex].getByteCount();
+            bitmaps[frameIndex] = null;
+            (keep[frameIndex] ? kept : evictable).remove(frameIndex);
+        }
+
+        /**
+         * Distance to the next use in play order, non kept frames always ranking first.
+         */
+        private int rank(int frameIndex) {
+            int frameCount = bitmaps.length;
+            int rank = (frameIndex - position + frameCount) % frameCount;
+            if (!keep[frameIndex]) rank += frameCount;
+            return rank;
+        }
+
+        /**
+         * The cached frame with the highest {@link #rank(int)}, i.e. the last one before the current position
+         * going around, or -1 if none is cached.
+         */
+        private int victim() {
+            TreeSet<Integer> indexes = evictable.isEmpty() ? kept : evictable;
+            if (indexes.isEmpty()) return -1;
+            Integer index = indexes.lower(position);
+            return index != null ? index : indexes.last();
+        }
+
+        private void removeAll() {
+            for (int i = 0; i < bitmaps.length; i++) {
+                remove(i);
+            }
+        }
+    }
+}
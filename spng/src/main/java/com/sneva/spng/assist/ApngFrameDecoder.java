@@ -0,0 +1,379 @@
+package com.sneva.spng.assist;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.PngjException;
+import ar.com.hjg.pngj.chunks.PngChunkACTL;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+/**
+ * Decodes APNG frames straight from the source file into ARGB pixel buffers.
+ * Frame payloads are located through the {@link ApngIndex} and inflated on demand,
+ * so no per-frame PNG files are written to the working dir.
+ * <p>
+ * The source file is memory mapped once, and payloads are fed to the inflater a window at a time straight out
+ * of the mapping, so decoding a frame makes no system call and never gathers its chunks into one buffer.
+ * <p>
+ * The inflater, input window and row buffers belong to the decoding thread and are reset between frames, so
+ * decoding allocates nothing once a thread has decoded a frame as wide as the current one. A decoder is not
+ * thread safe.
+ */
+public class ApngFrameDecoder {
+
+    private static final int[][] ADAM7 = {
+            // xStart, yStart, xStep, yStep
+            {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+    };
+    // Bytes handed to the inflater at a time, the Inflater only reading from arrays
+    private static final int INPUT_WINDOW_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final File file;
+    private final ApngIndex index;
+    private final ImageInfo imageInfo;
+    private final int[] palette;
+    private final int[] transparentColor;
+    private MappedByteBuffer mapping;
+    // Payload of the frame being inflated: the chunk being read, and the file range left of it
+    private ApngIndex.Frame inputFrame;
+    private int inputChunk;
+    private long inputPosition;
+    private long inputEnd;
+
+    /**
+     * What decoding needs besides the output, kept per thread. Row buffers only grow, by powers of two, so frames
+     * of about the same width share them. The inflater is never ended, it goes with its thread.
+     */
+    private static class Scratch {
+        final Inflater inflater = new Inflater();
+        final byte[] inputWindow = new byte[INPUT_WINDOW_SIZE];
+        byte[] row = new byte[0];
+        byte[] prev = new byte[0];
+
+        /**
+         * Makes the row buffers hold at least {@code length} bytes.
+         */
+        void ensureRowCapacity(int length) {
+            if (row.length >= length) return;
+            int capacity = Integer.highestOneBit(length);
+            if (capacity < length) capacity <<= 1;
+            row = new byte[capacity];
+            prev = new byte[capacity];
+        }
+    }
+
+    public ApngFrameDecoder(File file) throws IOException {
+        this(file, ApngIndex.get(file));
+    }
+
+    public ApngFrameDecoder(File file, ApngIndex index) {
+        this.file = file;
+        this.index = index;
+        imageInfo = index.getImageInfo();
+        palette = imageInfo.indexed ? createPalette(index.getPalette(), index.getTransparency()) : null;
+        transparentColor = imageInfo.indexed ? null : createTransparentColor(index.getTransparency());
+    }
+
+    public ImageInfo getImageInfo() {
+        return imageInfo;
+    }
+
+    public ApngIndex getIndex() {
+        return index;
+    }
+
+    public PngChunkACTL getActl() {
+        return index.getActl();
+    }
+
+    public List<PngChunkFCTL> getFctlList() {
+        return index.getFctlList();
+    }
+
+    public int getNumFrames() {
+        return index.getFrameCount();
+    }
+
+    /**
+     * Decodes a frame into {@code argb} as non-premultiplied ARGB colors,
+     * row-major with the frame width (not the canvas width) as stride.
+     */
+    public void decodeFrame(int frameIndex, int[] argb) throws IOException {
+        decodeFrame(frameIndex, argb, 1);
+    }
+
+    /**
+     * Same as {@link #decodeFrame(int, int[])}, keeping only the pixels that land on every {@code sampleSize}th
+     * column and row of the canvas, so that the frame lines up with a canvas downsampled the same way. The
+     * frame comes out {@link #getSampledFrameSize(int, int, int)} wide and high.
+     *
+     * @param sampleSize a power of two
+     */
+    public void decodeFrame(int frameIndex, int[] argb, int sampleSize) throws IOException {
+        ApngIndex.Frame frame = index.getFrame(frameIndex);
+        PngChunkFCTL fctl = frame.getFctl();
+        int width = fctl.getWidth();
+        int height = fctl.getHeight();
+        int xPhase = getSampledOffset(fctl.getxOff(), sampleSize);
+        int yPhase = getSampledOffset(fctl.getyOff(), sampleSize);
+        int stride = getSampledFrameSize(fctl.getxOff(), width, sampleSize);
+        if (argb.length < stride * getSampledFrameSize(fctl.getyOff(), height, sampleSize)) {
+            throw new PngjException("Pixel buffer too small for frame " + frameIndex);
+        }
+        map(frame);
+        startInput(frame);
+        Scratch scratch = sScratch.get();
+        // Also clears what a failed frame left behind
+        scratch.inflater.reset();
+        scratch.ensureRowCapacity((width * imageInfo.bitspPixel + 7) / 8 + 1);
+        try {
+            if (index.isInterlaced()) {
+                for (int[] pass : ADAM7) {
+                    int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+                    int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+                    if (passWidth <= 0 || passHeight <= 0) continue;
+                    decodePass(scratch, argb, passWidth, passHeight, stride, pass[0], pass[1], pass[2], pass[3],
+                            sampleSize, xPhase, yPhase);
+                }
+            } else {
+                decodePass(scratch, argb, width, height, stride, 0, 0, 1, 1, sampleSize, xPhase, yPhase);
+            }
+        } catch (DataFormatException e) {
+            throw new PngjException(e);
+        }
+    }
+
+    /**
+     * Number of pixels left of {@code size} when keeping one out of {@code sampleSize}.
+     */
+    public static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * First coordinate of a frame at {@code offset} on the canvas that lands on a kept canvas pixel.
+     */
+    public static int getSampledOffset(int offset, int sampleSize) {
+        return (sampleSize - offset % sampleSize) % sampleSize;
+    }
+
+    /**
+     * Number of pixels kept of a frame at {@code offset} on the canvas, {@code size} pixels long: those landing
+     * on a kept canvas pixel.
+     */
+    public static int getSampledFrameSize(int offset, int size, int sampleSize) {
+        return Math.max(0, getSampledSize(size - getSampledOffset(offset, sampleSize), sampleSize));
+    }
+
+    /**
+     * Maps the file, again if it has grown past the mapping to hold the frame, as a file being downloaded does.
+     */
+    private void map(ApngIndex.Frame frame) throws IOException {
+        int last = frame.getChunkCount() - 1;
+        long end = last < 0 ? 0 : frame.getChunkOffset(last) + frame.getChunkLength(last);
+        if (mapping != null && end <= mapping.capacity()) return;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping outlives the file being closed
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (end > mapping.capacity()) throw new EOFException("Truncated " + file.getPath());
+    }
+
+    private void startInput(ApngIndex.Frame frame) {
+        inputFrame = frame;
+        inputChunk = -1;
+        inputPosition = 0;
+        inputEnd = 0;
+    }
+
+    /**
+     * Hands the inflater the next window of the frame payload, moving on to the next chunk when one is used up.
+     *
+     * @return false once the whole payload was handed over
+     */
+    private boolean feedInput(Scratch scratch) {
+        while (inputPosition == inputEnd) {
+            if (++inputChunk >= inputFrame.getChunkCount()) return false;
+            inputPosition = inputFrame.getChunkOffset(inputChunk);
+            inputEnd = inputPosition + inputFrame.getChunkLength(inputChunk);
+        }
+        int n = (int) Math.min(scratch.inputWindow.length, inputEnd - inputPosition);
+        mapping.position((int) inputPosition);
+        mapping.get(scratch.inputWindow, 0, n);
+        inputPosition += n;
+        scratch.inflater.setInput(scratch.inputWindow, 0, n);
+        return true;
+    }
+
+    private void decodePass(Scratch scratch, int[] argb, int passWidth, int passHeight, int stride,
+                            int xStart, int yStart, int xStep, int yStep, int sampleSize, int xPhase, int yPhase)
+            throws DataFormatException {
+        int bytesPerRow = (passWidth * imageInfo.bitspPixel + 7) / 8;
+        int bpp = imageInfo.bytesPixel;
+        byte[] row = scratch.row;
+        byte[] prev = scratch.prev;
+        // The first row of a pass is unfiltered against zeros
+        Arrays.fill(prev, 0, bytesPerRow + 1, (byte) 0);
+        // First pass column landing on a kept column; with power of two steps the next ones follow regularly
+        int x0 = 0;
+        while (x0 < passWidth && (xStart + x0 * xStep - xPhase) % sampleSize != 0) x0++;
+        int dx = xStep >= sampleSize ? 1 : sampleSize / xStep;
+        int count = x0 < passWidth ? (passWidth - x0 + dx - 1) / dx : 0;
+        int step = Math.max(1, xStep / sampleSize);
+        for (int y = 0; y < passHeight; y++) {
+            inflateFully(scratch, row, bytesPerRow + 1);
+            unfilterRow(row[0], row, prev, bytesPerRow, bpp);
+            int dstRow = yStart + y * yStep;
+            if ((dstRow - yPhase) % sampleSize == 0 && count > 0) {
+                convertRow(row, x0, dx, count, argb,
+                        (dstRow - yPhase) / sampleSize * stride + (xStart + x0 * xStep - xPhase) / sampleSize, step);
+            }
+            byte[] tmp = prev;
+            prev = row;
+            row = tmp;
+        }
+    }
+
+    private void inflateFully(Scratch scratch, byte[] row, int length) throws DataFormatException {
+        Inflater inflater = scratch.inflater;
+        int filled = 0;
+        while (filled < length) {
+            int n = inflater.inflate(row, filled, length - filled);
+            if (n == 0 && inflater.needsInput() && feedInput(scratch)) continue;
+            if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                throw new PngjException("Truncated frame data");
+            }
+            filled += n;
+        }
+    }
+
+    private static void unfilterRow(byte filterType, byte[] row, byte[] prev, int bytesPerRow, int bpp) {
+        switch (filterType) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + bpp; i <= bytesPerRow; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 1; i <= bytesPerRow; i++) {
+                    row[i] += prev[i];
+                }
+                break;
+            case 3:
+                for (int i = 1; i <= bytesPerRow; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (left + (prev[i] & 0xFF)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 1; i <= bytesPerRow; i++) {
+                    int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i > bpp ? prev[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new PngjException("Invalid filter type " + filterType);
+        }
+    }
+
+    /**
+     * Converts {@code count} pixels of a row, starting at pixel {@code x0} and moving {@code dx} pixels at a time.
+     */
+    private void convertRow(byte[] row, int x0, int dx, int count, int[] argb, int offset, int step) {
+        int bitDepth = imageInfo.bitDepth;
+        int channels = imageInfo.channels;
+        if (bitDepth < 8) {
+            int mask = (1 << bitDepth) - 1;
+            for (int i = 0, x = x0; i < count; i++, x += dx) {
+                int bit = x * bitDepth;
+                int sample = (row[1 + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & mask;
+                argb[offset + i * step] = palette != null ? palette[sample] : gray(sample * 255 / mask, sample);
+            }
+            return;
+        }
+        int bytesPerSample = bitDepth / 8;
+        int bytesPerPixel = channels * bytesPerSample;
+        int p = 1 + x0 * bytesPerPixel;
+        for (int i = 0; i < count; i++, p += dx * bytesPerPixel) {
+            int color;
+            if (palette != null) {
+                color = palette[row[p] & 0xFF];
+            } else if (channels == 1) {
+                color = gray(row[p] & 0xFF, sample(row, p, bytesPerSample));
+            } else if (channels == 2) {
+                int g = row[p] & 0xFF;
+                color = (row[p + bytesPerSample] & 0xFF) << 24 | g << 16 | g << 8 | g;
+            } else {
+                int r = row[p] & 0xFF;
+                int g = row[p + bytesPerSample] & 0xFF;
+                int b = row[p + 2 * bytesPerSample] & 0xFF;
+                int a = 0xFF;
+                if (channels == 4) {
+                    a = row[p + 3 * bytesPerSample] & 0xFF;
+                } else if (transparentColor != null
+                        && sample(row, p, bytesPerSample) == transparentColor[0]
+                        && sample(row, p + bytesPerSample, bytesPerSample) == transparentColor[1]
+                        && sample(row, p + 2 * bytesPerSample, bytesPerSample) == transparentColor[2]) {
+                    a = 0;
+                }
+                color = a << 24 | r << 16 | g << 8 | b;
+            }
+            argb[offset + i * step] = color;
+        }
+    }
+
+    private int gray(int value, int sample) {
+        int a = transparentColor != null && sample == transparentColor[0] ? 0 : 0xFF;
+        return a << 24 | value << 16 | value << 8 | value;
+    }
+
+    private static int sample(byte[] row, int p, int bytesPerSample) {
+        return bytesPerSample == 2 ? (row[p] & 0xFF) << 8 | (row[p + 1] & 0xFF) : row[p] & 0xFF;
+    }
+
+    private static int[] createPalette(byte[] plte, byte[] trns) {
+        int[] colors = new int[256];
+        if (plte == null) return colors;
+        for (int i = 0; i < plte.length / 3 && i < colors.length; i++) {
+            int a = trns != null && i < trns.length ? trns[i] & 0xFF : 0xFF;
+            colors[i] = a << 24 | (plte[i * 3] & 0xFF) << 16 | (plte[i * 3 + 1] & 0xFF) << 8 | (plte[i * 3 + 2] & 0xFF);
+        }
+        return colors;
+    }
+
+    private static int[] createTransparentColor(byte[] trns) {
+        if (trns == null || (trns.length != 2 && trns.length != 6)) return null;
+        int[] color = new int[trns.length / 2];
+        for (int i = 0; i < color.length; i++) {
+            color[i] = (trns[i * 2] & 0xFF) << 8 | (trns[i * 2 + 1] & 0xFF);
+        }
+        return color;
+    }
+}
@@ -5,112 +5,171 @@ import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Process;
 
-import com.nostra13.universalimageloader.core.assist.ContentLengthInputStream;
 import com.nostra13.universalimageloader.core.download.BaseImageDownloader;
 import com.sneva.spng.Slogger;
 
-import org.apache.commons.io.FileUtils;
-
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Copies PNG images into the working dir as UIL reads them. Loader threads process their own streams; the
+ * follow-up work (indexing new APNGs, keeping the working dir within its size) runs on a shared pool.
+ * Once the loader has decoded the first frame, the rest of the image is downloaded in the background, so the
+ * animation can start playing before it is complete.
+ * <p>
+ * The copies stand in for UIL's disk cache, which reads the whole image before handing it to the decoder:
+ * network images already copied are read from the working dir, and those being copied from the copy as it is
+ * written, so concurrent loads of the same image download it once. Streaming needs display options with
+ * {@code cacheOnDisk(false)}, see {@link com.sneva.spng.ApngImageLoader#setEnableStreaming(boolean)}.
+ */
 public class ApngImageDownloader extends BaseImageDownloader {
 
-	private static final int BUFFER_SIZE = 32 * 1024; // 32 Kb
+	public static final int DEFAULT_POOL_SIZE = 2;
+
 	private final Context mContext;
-	private final ExecutorService mExecutor;
+	private final ThreadPoolExecutor mExecutor;
+	private final ExecutorService mDownloadExecutor = Executors.newCachedThreadPool(new IngestionThreadFactory("apng-download-"));
+	private final ApngInFlightCopies mCopies;
+	private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
 	
 	public ApngImageDownloader(Context context) {
+		this(context, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param poolSize number of threads processing copied images in the background
+	 */
+	public ApngImageDownloader(Context context, int poolSize) {
 		super(context);
 		mContext = context;
-		mExecutor = Executors.newSingleThreadExecutor();
+		mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 30L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new IngestionThreadFactory("apng-ingestion-"));
+		mExecutor.allowCoreThreadTimeOut(true);
+		// Waits for another load to connect as long as for a connection
+		mCopies = new ApngInFlightCopies(connectTimeout + readTimeout, mDownloadExecutor, this::onCopyFinished);
+	}
+
+	/**
+	 * Number of background tasks waiting for a thread.
+	 */
+	public int getQueueDepth() {
+		return mExecutor.getQueue().size();
+	}
+
+	/**
+	 * Number of images being copied into the working dir right now.
+	 */
+	public int getInFlightCount() {
+		return mCopies.size();
 	}
 	
 	@Override
 	protected InputStream getStreamFromFile(final String imageUri, Object extra) throws IOException {
-		final InputStream imageStream = super.getStreamFromFile(imageUri, extra);
-		
-		Future<InputStream> future = mExecutor.submit(() -> processImage(imageUri, imageStream));
-		InputStream result = null;
-		try {
-			result = future.get();
-		} catch (Exception e) {
-			if (enableDebugLog) Slogger.w("Error: %s", e.toString());
-		}
-		return result;
+		return processImage(imageUri, super.getStreamFromFile(imageUri, extra));
 	}
 	
 	@Override
 	protected InputStream getStreamFromAssets(final String imageUri, Object extra) throws IOException {
-		final InputStream imageStream = super.getStreamFromAssets(imageUri, extra);
-		
-		Future<InputStream> future = mExecutor.submit(() -> processImage(imageUri, imageStream));
-		InputStream result = null;
-		try {
-			result = future.get();
-		} catch (Exception e) {
-			if (enableDebugLog) Slogger.w("Error: %s", e.toString());
-		}
-		return result;
+		return processImage(imageUri, super.getStreamFromAssets(imageUri, extra));
 	}
 	
 	@Override
-	protected InputStream getStreamFromNetwork(final String imageUri, Object extra) throws IOException {
-		final InputStream imageStream = super.getStreamFromNetwork(imageUri, extra);
-		
-		Future<InputStream> future = mExecutor.submit(() -> processImage(imageUri, imageStream));
-		InputStream result = null;
+	protected InputStream getStreamFromNetwork(final String imageUri, final Object extra) throws IOException {
+		final File targetFile = isPng(imageUri) ? AssistUtil.getCopiedFile(mContext, imageUri) : null;
+		if (targetFile == null) return processImage(imageUri, super.getStreamFromNetwork(imageUri, extra));
+		scheduleTrim();
+		return mCopies.open(new ApngInFlightCopies.Source() {
+			@Override
+			public File getTargetFile() {
+				File copiedFile = AssistUtil.getCopiedFile(mContext, imageUri);
+				return copiedFile != null ? copiedFile : targetFile;
+			}
+
+			@Override
+			public InputStream open() throws IOException {
+				return ApngImageDownloader.super.getStreamFromNetwork(imageUri, extra);
+			}
+		});
+	}
+
+	private static boolean isPng(String imageUri) {
 		try {
-			result = future.get();
+			String path = Uri.parse(imageUri).getPath();
+			return path != null && path.endsWith(".png");
 		} catch (Exception e) {
-			if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+			return false;
 		}
-		return result;
 	}
 	
 	private InputStream processImage(String imageUri, InputStream imageStream) {
 		if (imageUri == null || imageStream == null) {
 			return imageStream;
 		}
-		boolean isPng = false;
-		try {
-			Uri url = Uri.parse(imageUri);
-			String path = url.getPath();
-			isPng = path != null && path.endsWith(".png");
-		} catch (Exception e) { /* ignored */ }
-		if (!isPng) return imageStream;
-		File cacheDir = AssistUtil.getWorkingDir(mContext);
-		AssistUtil.checkCahceSize(cacheDir, 0);
+		if (!isPng(imageUri)) return imageStream;
+		scheduleTrim();
 		File targetFile = AssistUtil.getCopiedFile(mContext, imageUri);
 		if (targetFile == null) {
 			if (enableDebugLog) Slogger.w("Can't copy a file!!! %s", imageUri);
-		} else if (!targetFile.exists()) {
-			if (enableVerboseLog) Slogger.v("Copy\nfrom: %s\nto: %s", imageUri, targetFile.getPath());
-			try {
-				try {
-					URL url = new URL(imageUri);
-					FileUtils.copyURLToFile(url, targetFile);
+			return imageStream;
+		}
+		return mCopies.copy(targetFile, imageStream);
+	}
 
-				} catch (MalformedURLException e) {
-					FileUtils.copyInputStreamToFile(imageStream, targetFile);
+	private void onCopyFinished(File targetFile, long contentHash, boolean success) {
+		if (!success) return;
+		// The copy is dropped if the same image was already stored for another URI
+		final File storedFile = ApngDiskCache.get(targetFile.getParentFile()).put(targetFile, contentHash);
+		// Index new animations ahead of the drawable, off the UI thread
+		mExecutor.execute(() -> {
+			if (AssistUtil.isApng(storedFile)) {
+				try {
+					ApngIndex.get(storedFile);
+				} catch (Exception e) {
+					if (enableDebugLog) Slogger.w("Error: %s", e.toString());
 				}
-				if (enableVerboseLog) Slogger.v("Copy finished");
-				FileInputStream input = new FileInputStream(targetFile);
-				imageStream = new ContentLengthInputStream(new BufferedInputStream(input, BUFFER_SIZE), input.available());
-
-			} catch (Exception e) {
-				if (enableDebugLog) Slogger.w("Error: %s", e.toString());
 			}
+		});
+	}
+
+	private void scheduleTrim() {
+		if (!mTrimScheduled.compareAndSet(false, true)) return;
+		mExecutor.execute(() -> {
+			mTrimScheduled.set(false);
+			File cacheDir = AssistUtil.getWorkingDir(mContext);
+			if (cacheDir != null) AssistUtil.checkCahceSize(cacheDir, 0);
+		});
+	}
+
+	private static class IngestionThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		private final String namePrefix;
+
+		IngestionThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, namePrefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
 		}
-		return imageStream;
 	}
 }
@@ -45,10 +45,12 @@ public class ApngImageLoadingListener implements ImageLoadingListener {
         if (tag != null && tag instanceof String) {
             String actualUri = tag.toString();
             File pngFile = AssistUtil.getCopiedFile(context, actualUri);
+            // The animation may start while the rest of the file is still being downloaded
+            File partialFile = pngFile == null ? null : ApngTeeInputStream.getPartialFile(pngFile);
             if (pngFile == null) {
                 if (enableDebugLog) Slogger.w("Can't locate the file!!! %s", actualUri);
-            } else if (pngFile.exists()) {
-                boolean isApng = AssistUtil.isApng(pngFile);
+            } else if (pngFile.exists() || partialFile != null) {
+                boolean isApng = AssistUtil.isApng(pngFile.exists() ? pngFile : partialFile);
                 if (isApng) {
                     if (enableDebugLog) Slogger.d("Setup apng drawable");
                     ApngDrawable drawable = new ApngDrawable(context, loadedImage, Uri.fromFile(pngFile));
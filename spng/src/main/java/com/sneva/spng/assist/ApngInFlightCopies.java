@@ -0,0 +1,201 @@
+package com.sneva.spng.assist;
+
+import static com.sneva.spng.ApngImageLoader.enableDebugLog;
+import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
+
+import com.nostra13.universalimageloader.core.assist.ContentLengthInputStream;
+import com.sneva.spng.Slogger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies of images being written into the working dir, by target path, so that concurrent loads of an image
+ * download it once: the first load claims the copy before opening the source, and the others wait for it to
+ * start, then read the copy as it is written.
+ */
+public class ApngInFlightCopies {
+
+    public interface Source {
+        /**
+         * File the image is copied to. Asked again once a copy is done with, as it may have been stored under
+         * another name.
+         */
+        File getTargetFile();
+
+        InputStream open() throws IOException;
+    }
+
+    public interface Callback {
+        /**
+         * Called once per copy, when it is in place or has been given up, before another load can claim it.
+         */
+        void onCopyFinished(File targetFile, long contentHash, boolean success);
+    }
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final ConcurrentMap<String, Copy> copies = new ConcurrentHashMap<>();
+    private final long claimTimeoutMs;
+    private final Executor drainExecutor;
+    private final Callback callback;
+
+    /**
+     * @param claimTimeoutMs how long a load waits for the one that claimed the copy to open the source, before
+     *                       opening it itself
+     * @param drainExecutor  copies the rest of a source once its reader is done with it
+     */
+    public ApngInFlightCopies(long claimTimeoutMs, Executor drainExecutor, Callback callback) {
+        this.claimTimeoutMs = claimTimeoutMs;
+        this.drainExecutor = drainExecutor;
+        this.callback = callback;
+    }
+
+    /**
+     * Number of copies claimed or being written.
+     */
+    public int size() {
+        return copies.size();
+    }
+
+    /**
+     * The image read from its copy, from the copy another load is writing, or from the source while it is copied.
+     */
+    public InputStream open(Source source) throws IOException {
+        while (true) {
+            File targetFile = source.getTargetFile();
+            if (targetFile.exists()) {
+                if (enableVerboseLog) Slogger.v("Read from the copy: %s", targetFile.getPath());
+                return new ContentLengthInputStream(new BufferedInputStream(new FileInputStream(targetFile), BUFFER_SIZE),
+                        (int) targetFile.length());
+            }
+            Copy copy = new Copy(targetFile);
+            Copy claimed = copies.putIfAbsent(targetFile.getPath(), copy);
+            if (claimed == null) {
+                InputStream imageStream;
+                try {
+                    imageStream = source.open();
+                } catch (IOException | RuntimeException e) {
+                    release(copy);
+                    throw e;
+                }
+                return start(copy, imageStream);
+            }
+            InputStream tail = claimed.awaitTail(claimTimeoutMs);
+            if (tail != null) {
+                if (enableVerboseLog) Slogger.v("Read while copied by another load: %s", targetFile.getPath());
+                return tail;
+            }
+            if (!claimed.isStarted()) {
+                if (enableDebugLog) Slogger.w("Gave up waiting for the copy: %s", targetFile.getPath());
+                return source.open();
+            }
+            // Done with, the copy is in place now or can be claimed again
+        }
+    }
+
+    /**
+     * Copies a stream the caller has opened, unless the image is already copied or being copied.
+     */
+    public InputStream copy(File targetFile, InputStream imageStream) {
+        Copy copy = new Copy(targetFile);
+        if (targetFile.exists() || copies.putIfAbsent(targetFile.getPath(), copy) != null) {
+            if (enableVerboseLog) Slogger.v("Already copied or being copied: %s", targetFile.getPath());
+            return imageStream;
+        }
+        return start(copy, imageStream);
+    }
+
+    private InputStream start(Copy copy, InputStream imageStream) {
+        if (imageStream == null) {
+            release(copy);
+            return null;
+        }
+        if (enableVerboseLog) Slogger.v("Copy to: %s", copy.targetFile.getPath());
+        try {
+            // The copy is written while the decoder reads the stream
+            ApngTeeInputStream teeStream = new ApngTeeInputStream(imageStream, copy.targetFile);
+            int length = imageStream.available();
+            copy.start(teeStream, length);
+            teeStream.setDrainExecutor(drainExecutor);
+            teeStream.setCallback(success -> finish(copy, teeStream.getContentHash(), success));
+            return new ContentLengthInputStream(teeStream, length);
+        } catch (Exception e) {
+            release(copy);
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            return imageStream;
+        }
+    }
+
+    private void finish(Copy copy, long contentHash, boolean success) {
+        try {
+            callback.onCopyFinished(copy.targetFile, contentHash, success);
+        } finally {
+            release(copy);
+        }
+    }
+
+    private void release(Copy copy) {
+        copies.remove(copy.targetFile.getPath(), copy);
+        copy.done();
+    }
+
+    private static class Copy {
+        final File targetFile;
+        private ApngTeeInputStream teeStream;
+        private int length;
+        private boolean started;
+        private boolean done;
+
+        Copy(File targetFile) {
+            this.targetFile = targetFile;
+        }
+
+        synchronized void start(ApngTeeInputStream teeStream, int length) {
+            if (done) return;
+            this.teeStream = teeStream;
+            this.length = length;
+            started = true;
+            notifyAll();
+        }
+
+        synchronized void done() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized boolean isStarted() {
+            return started || done;
+        }
+
+        /**
+         * A stream of the copy as it is written, or null once it is done with, or if it has not started within
+         * {@code timeoutMs}.
+         */
+        synchronized InputStream awaitTail(long timeoutMs) throws InterruptedIOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!done) {
+                InputStream tail = started ? teeStream.openTail() : null;
+                if (tail != null) return new ContentLengthInputStream(new BufferedInputStream(tail, BUFFER_SIZE), length);
+                // Not started yet, or being finished
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) return null;
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return null;
+        }
+    }
+}
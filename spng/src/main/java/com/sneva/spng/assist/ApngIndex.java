@@ -0,0 +1,391 @@
+package com.sneva.spng.assist;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.PngHelperInternal;
+import ar.com.hjg.pngj.PngjException;
+import ar.com.hjg.pngj.chunks.PngChunkACTL;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+import ar.com.hjg.pngj.chunks.PngChunkFDAT;
+import ar.com.hjg.pngj.chunks.PngChunkIDAT;
+import ar.com.hjg.pngj.chunks.PngChunkIEND;
+import ar.com.hjg.pngj.chunks.PngChunkIHDR;
+import ar.com.hjg.pngj.chunks.PngChunkPLTE;
+import ar.com.hjg.pngj.chunks.PngChunkTRNS;
+
+/**
+ * Compact index of an APNG container built by a single scan over the chunk headers:
+ * acTL values, fcTL fields of every frame and the file offsets of each frame's IDAT/fdAT payload.
+ * Only the small control chunks are read; image data is skipped and later read on demand.
+ * Indexes are cached in memory per file, so detection, extraction and playback share one scan.
+ * <p>
+ * A file still being written can be indexed too: the scan stops where the file ends and keeps the frames
+ * whose data is known to be complete, see {@link #isComplete()}.
+ */
+public class ApngIndex {
+
+    private static final int CACHE_CAPACITY = 32;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final Map<String, ApngIndex> sCache = new LinkedHashMap<String, ApngIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ApngIndex> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private final long fileLength;
+    private final long lastModified;
+    private ImageInfo imageInfo;
+    private boolean interlaced;
+    private boolean hasActl;
+    private boolean complete;
+    private int numFrames;
+    private int numPlays;
+    private byte[] palette;
+    private byte[] transparency;
+    private final List<long[]> headerChunks = new ArrayList<>();
+    private final List<Frame> frames = new ArrayList<>();
+    // Frames followed by the header of the next fcTL or of IEND, whose data is known to be complete
+    private int completeFrameCount;
+    private List<PngChunkFCTL> fctlList;
+
+    /**
+     * One animation frame: its fcTL and the file ranges of its compressed data.
+     * For fdAT chunks the ranges exclude the sequence number.
+     */
+    public static class Frame {
+        private final PngChunkFCTL fctl;
+        private final boolean keyFrame;
+        private long[] offsets = new long[1];
+        private int[] lengths = new int[1];
+        private int chunkCount;
+        private int dataLength;
+
+        Frame(PngChunkFCTL fctl, boolean keyFrame) {
+            this.fctl = fctl;
+            this.keyFrame = keyFrame;
+        }
+
+        void addData(long offset, int length) {
+            if (chunkCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, chunkCount * 2);
+                lengths = Arrays.copyOf(lengths, chunkCount * 2);
+            }
+            offsets[chunkCount] = offset;
+            lengths[chunkCount] = length;
+            chunkCount++;
+            dataLength += length;
+        }
+
+        public PngChunkFCTL getFctl() {
+            return fctl;
+        }
+
+        /**
+         * Whether the frame replaces the whole canvas (full size, SOURCE blend),
+         * so its output does not depend on any earlier frame.
+         */
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public long getChunkOffset(int chunk) {
+            return offsets[chunk];
+        }
+
+        public int getChunkLength(int chunk) {
+            return lengths[chunk];
+        }
+
+        public int getDataLength() {
+            return dataLength;
+        }
+    }
+
+    private ApngIndex(File file) {
+        fileLength = file.length();
+        lastModified = file.lastModified();
+    }
+
+    /**
+     * Returns the cached index of a file, scanning it if it is not cached or has changed since.
+     */
+    public static ApngIndex get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        ApngIndex index;
+        synchronized (sCache) {
+            index = sCache.get(key);
+        }
+        if (index != null && index.fileLength == file.length() && index.lastModified == file.lastModified()) {
+            return index;
+        }
+        index = scan(file);
+        synchronized (sCache) {
+            sCache.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Whether a file is an APNG, reading as little of it as possible: acTL has to come before the first IDAT, so
+     * only the chunk headers up to there are read and every chunk body is skipped with a seek. A static PNG
+     * costs a few small reads however large it is.
+     */
+    public static boolean sniffApng(File file) throws IOException {
+        ApngIndex index;
+        synchronized (sCache) {
+            index = sCache.get(file.getAbsolutePath());
+        }
+        if (index != null && index.fileLength == file.length() && index.lastModified == file.lastModified()) {
+            return index.isApng();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[8];
+            raf.readFully(header);
+            if (!Arrays.equals(header, PngHelperInternal.getPngIdSignature())) {
+                throw new PngjException("Bad PNG signature");
+            }
+            long fileLength = raf.length();
+            long offset = header.length;
+            while (offset + header.length <= fileLength) {
+                raf.seek(offset);
+                raf.readFully(header);
+                int length = readInt(header, 0);
+                String id = new String(header, 4, 4, "ISO-8859-1");
+                if (length < 0) throw new PngjException("Bad chunk length in " + id);
+                if (id.equals(PngChunkIDAT.ID)) return false;
+                if (id.equals(PngChunkACTL.ID)) return length >= 8 && raf.readInt() > 1;
+                offset += header.length + length + 4;
+            }
+            return false;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    public static void evict(File file) {
+        synchronized (sCache) {
+            sCache.remove(file.getAbsolutePath());
+        }
+    }
+
+    private static ApngIndex scan(File file) throws IOException {
+        ApngIndex index = new ApngIndex(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            index.read(in);
+        } catch (EOFException e) {
+            if (index.imageInfo == null) throw e;
+            // The data of the last frame may still be coming
+            while (index.frames.size() > index.completeFrameCount) index.frames.remove(index.frames.size() - 1);
+        } finally {
+            in.close();
+        }
+        index.buildFctlList();
+        return index;
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        byte[] signature = new byte[8];
+        in.readFully(signature);
+        if (!Arrays.equals(signature, PngHelperInternal.getPngIdSignature())) {
+            throw new PngjException("Bad PNG signature");
+        }
+        long offset = signature.length;
+        Frame frame = null;
+        boolean seenData = false;
+        byte[] type = new byte[4];
+        while (true) {
+            int length = in.readInt();
+            in.readFully(type);
+            String id = new String(type, "ISO-8859-1");
+            if (id.equals(PngChunkFCTL.ID) || id.equals(PngChunkIEND.ID)) completeFrameCount = frames.size();
+            long dataOffset = offset + 8;
+            int consumed = 0;
+            if (length < 0) throw new PngjException("Bad chunk length in " + id);
+            if (id.equals(PngChunkIHDR.ID)) {
+                int cols = in.readInt();
+                int rows = in.readInt();
+                int bitDepth = in.readUnsignedByte();
+                int colorType = in.readUnsignedByte();
+                in.readUnsignedByte();
+                in.readUnsignedByte();
+                interlaced = in.readUnsignedByte() != 0;
+                consumed = 13;
+                imageInfo = new ImageInfo(cols, rows, bitDepth, (colorType & 4) != 0, (colorType & 2) == 0, colorType == 3);
+            } else if (imageInfo == null) {
+                throw new PngjException("First chunk is not IHDR");
+            } else if (id.equals(PngChunkACTL.ID)) {
+                hasActl = true;
+                numFrames = in.readInt();
+                numPlays = in.readInt();
+                consumed = 8;
+            } else if (id.equals(PngChunkFCTL.ID)) {
+                PngChunkFCTL fctl = new PngChunkFCTL(imageInfo);
+                fctl.setSeqNum(in.readInt());
+                fctl.setWidth(in.readInt());
+                fctl.setHeight(in.readInt());
+                fctl.setxOff(in.readInt());
+                fctl.setyOff(in.readInt());
+                fctl.setDelayNum(in.readUnsignedShort());
+                fctl.setDelayDen(in.readUnsignedShort());
+                fctl.setDisposeOp(in.readByte());
+                fctl.setBlendOp(in.readByte());
+                consumed = 26;
+                frame = new Frame(fctl, fctl.getBlendOp() == PngChunkFCTL.APNG_BLEND_OP_SOURCE
+                        && fctl.getxOff() == 0 && fctl.getyOff() == 0
+                        && fctl.getWidth() == imageInfo.cols && fctl.getHeight() == imageInfo.rows);
+                frames.add(frame);
+            } else if (id.equals(PngChunkIDAT.ID)) {
+                seenData = true;
+                // The default image is not part of the animation when no fcTL precedes it
+                if (frame != null) frame.addData(dataOffset, length);
+            } else if (id.equals(PngChunkFDAT.ID)) {
+                seenData = true;
+                if (frame != null && length > 4) frame.addData(dataOffset + 4, length - 4);
+            } else if (id.equals(PngChunkIEND.ID)) {
+                complete = true;
+                break;
+            } else if (!seenData) {
+                if (id.equals(PngChunkPLTE.ID)) {
+                    palette = new byte[length];
+                    in.readFully(palette);
+                    consumed = length;
+                } else if (id.equals(PngChunkTRNS.ID)) {
+                    transparency = new byte[length];
+                    in.readFully(transparency);
+                    consumed = length;
+                }
+                headerChunks.add(new long[] {offset, length + 12});
+            }
+            skipFully(in, length - consumed + 4);
+            offset = dataOffset + length + 4;
+        }
+        if (frames.size() > 0 && frames.get(frames.size() - 1).chunkCount == 0) {
+            frames.remove(frames.size() - 1);
+        }
+    }
+
+    private void buildFctlList() {
+        List<PngChunkFCTL> list = new ArrayList<>(frames.size());
+        for (Frame f : frames) list.add(f.fctl);
+        fctlList = Collections.unmodifiableList(list);
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    public ImageInfo getImageInfo() {
+        return imageInfo;
+    }
+
+    public boolean isInterlaced() {
+        return interlaced;
+    }
+
+    /**
+     * Whether the whole file was scanned, up to IEND. If not, the file ends early, e.g. because it is still
+     * being downloaded, and more frames may follow.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isApng() {
+        return hasActl && numFrames > 1;
+    }
+
+    /**
+     * Whether no pixel of any composed frame can be transparent: no alpha channel, no tRNS chunk and no frame
+     * disposed to the transparent background (a first frame disposed to PREVIOUS counts as such).
+     * Frames not scanned yet are unknown, so an incomplete file is not opaque.
+     */
+    public boolean isOpaque() {
+        if (!complete || imageInfo.alpha || transparency != null) return false;
+        for (int i = 0; i < frames.size(); i++) {
+            byte disposeOp = frames.get(i).getFctl().getDisposeOp();
+            if (disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND
+                    || (i == 0 && disposeOp == PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public PngChunkACTL getActl() {
+        if (!hasActl) return null;
+        PngChunkACTL actl = new PngChunkACTL(imageInfo);
+        actl.setNumFrames(numFrames);
+        actl.setNumPlays(numPlays);
+        return actl;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getNumPlays() {
+        return numPlays;
+    }
+
+    /** Raw PLTE payload or null */
+    public byte[] getPalette() {
+        return palette;
+    }
+
+    /** Raw tRNS payload or null */
+    public byte[] getTransparency() {
+        return transparency;
+    }
+
+    /**
+     * Ancillary chunks preceding the image data, as {offset, length} pairs covering the whole chunk
+     * (length, type, data and CRC).
+     */
+    public List<long[]> getHeaderChunks() {
+        return headerChunks;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    public Frame getFrame(int frameIndex) {
+        return frames.get(frameIndex);
+    }
+
+    public List<PngChunkFCTL> getFctlList() {
+        return fctlList;
+    }
+}
@@ -0,0 +1,72 @@
+package com.sneva.spng.assist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads an image from the copy another load is writing, see {@link ApngTeeInputStream#openTail()}, waiting for
+ * the bytes not written yet, so that concurrent loads of the same image download it once.
+ * <p>
+ * The file stays readable once moved in place or dropped as a duplicate, as it is kept open.
+ */
+class ApngTailInputStream extends InputStream {
+
+    private static final long POLL_INTERVAL_MS = 10;
+    // As long as a network read is waited for
+    private static final long STALL_TIMEOUT_MS = 20 * 1000;
+
+    private final ApngTeeInputStream tee;
+    private final RandomAccessFile file;
+
+    ApngTailInputStream(ApngTeeInputStream tee, RandomAccessFile file) {
+        this.tee = tee;
+        this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) return 0;
+        long stallStart = -1;
+        while (true) {
+            // Looked at before reading, so that no byte written before the copy finished is missed
+            boolean finished = tee.isFinished();
+            int n = file.read(buffer, offset, count);
+            if (n > 0) return n;
+            if (finished) {
+                if (tee.isComplete()) return -1;
+                throw new IOException("Copy abandoned");
+            }
+            long now = System.nanoTime();
+            if (stallStart < 0) {
+                stallStart = now;
+            } else if (TimeUnit.NANOSECONDS.toMillis(now - stallStart) > STALL_TIMEOUT_MS) {
+                throw new IOException("Copy stalled");
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, file.length() - file.getFilePointer()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
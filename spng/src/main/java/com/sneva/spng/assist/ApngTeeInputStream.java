@@ -0,0 +1,346 @@
+package com.sneva.spng.assist;
+
+import static com.sneva.spng.ApngImageLoader.enableDebugLog;
+import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
+
+import com.sneva.spng.Slogger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands an image stream to its reader while copying it into the working dir, so the source is read only once.
+ * The copy is written to a temporary file and moved to its target when the stream has been read to the end;
+ * if the reader closes the stream earlier, the rest is drained into the copy first.
+ * <p>
+ * The chunk headers going through are also walked, to tell whether the image is an APNG without reading the
+ * copy again, and its content is hashed for {@link ApngDiskCache#put(File, long)}.
+ * <p>
+ * The copy is flushed whenever a frame has been received, i.e. at each fcTL chunk and at the end, so while
+ * the image is still downloading the frames received so far can be read from {@link #getPartialFile(File)}.
+ * Another load of the same image can read it as it is copied with {@link #openTail()}.
+ */
+public class ApngTeeInputStream extends FilterInputStream {
+
+    public interface Callback {
+        /**
+         * Called once, when the copy is in place or has been given up.
+         */
+        void onCopyFinished(boolean success);
+    }
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int ACTL = 0x6163544C;
+    private static final int IDAT = 0x49444154;
+    private static final int FCTL = 0x6663544C;
+    private static final int IEND = 0x49454E44;
+    private static final int SIGNATURE_LENGTH = 8;
+
+    // Target path to the temporary file being written for it
+    private static final ConcurrentMap<String, File> sPartialFiles = new ConcurrentHashMap<>();
+
+    private final File targetFile;
+    private File tempFile;
+    private OutputStream output;
+    private long position;
+    private long written;
+    private long markPosition = -1;
+    private boolean closed;
+    private Callback callback;
+    private Executor drainExecutor;
+    // Read by tails: whether the copy is done with, and whether the whole stream made it to the file
+    private volatile boolean finished;
+    private volatile boolean complete;
+    private final ApngCacheKey.ContentHash contentHash = new ApngCacheKey.ContentHash();
+
+    // Chunk walking state: bytes of the current header or acTL payload, and bytes left to skip
+    private final byte[] header = new byte[8];
+    private int headerFilled;
+    private long skipRemaining = SIGNATURE_LENGTH;
+    private boolean readingActl;
+    private boolean sniffed;
+    private boolean isApng;
+    private boolean frameReceived;
+
+    public ApngTeeInputStream(InputStream in, File targetFile) {
+        super(in);
+        this.targetFile = targetFile;
+        try {
+            tempFile = File.createTempFile(targetFile.getName() + "-", ".tmp", targetFile.getParentFile());
+            output = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+            sPartialFiles.put(targetFile.getAbsolutePath(), tempFile);
+        } catch (IOException e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            abandon();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            commit();
+        } else {
+            tee(new byte[]{(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int n = super.read(buffer, offset, count);
+        if (n < 0) {
+            commit();
+        } else {
+            tee(buffer, offset, n);
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are still read, the copy needs them.
+     */
+    @Override
+    public long skip(long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 0))];
+        long skipped = 0;
+        while (skipped < count) {
+            int n = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (n < 0) break;
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        position = markPosition;
+    }
+
+    /**
+     * The copy drains the rest of the stream on {@link #setDrainExecutor(Executor)} if one is set, else before
+     * returning.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (output != null && drainExecutor != null) {
+            drainExecutor.execute(() -> {
+                try {
+                    drainAndClose();
+                } catch (IOException e) {
+                    if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+                }
+            });
+            return;
+        }
+        drainAndClose();
+    }
+
+    private void drainAndClose() throws IOException {
+        try {
+            if (output != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (output != null && read(buffer, 0, buffer.length) >= 0) {
+                    // Drain the rest into the copy
+                }
+            }
+        } catch (IOException e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            abandon();
+        } finally {
+            super.close();
+        }
+    }
+
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+        // Creating the copy may have failed already
+        if (output == null) finish(false);
+    }
+
+    /**
+     * Lets {@link #close()} return at once, the rest of the stream being copied on {@code executor}, so a reader
+     * done with the first frame does not wait for the whole download.
+     */
+    public void setDrainExecutor(Executor executor) {
+        drainExecutor = executor;
+    }
+
+    /**
+     * The temporary file holding what has been copied so far for {@code targetFile}, or null if no copy is
+     * being written. The file is gone once the copy is in place.
+     */
+    public static File getPartialFile(File targetFile) {
+        return sPartialFiles.get(targetFile.getAbsolutePath());
+    }
+
+    /**
+     * Another stream of the image, read from the copy as it is written, or null if the copy is not being written
+     * anymore. It waits for the bytes not copied yet, and fails if the copy is abandoned.
+     */
+    public InputStream openTail() {
+        if (finished || tempFile == null) return null;
+        try {
+            return new ApngTailInputStream(this, new RandomAccessFile(tempFile, "r"));
+        } catch (FileNotFoundException e) {
+            // Moved in place or deleted meanwhile
+            return null;
+        }
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Hash of the copy, once it is in place.
+     */
+    public long getContentHash() {
+        return contentHash.getValue();
+    }
+
+    /**
+     * Whether the bytes read so far identify an APNG, i.e. an acTL chunk for more than one frame before the image data.
+     */
+    public boolean isApng() {
+        return isApng;
+    }
+
+    /**
+     * Whether enough bytes went through to know if the image is an APNG.
+     */
+    public boolean isSniffed() {
+        return sniffed;
+    }
+
+    private void tee(byte[] buffer, int offset, int count) {
+        // After a reset, bytes already copied are read again
+        int skip = (int) Math.max(0, Math.min(count, written - position));
+        position += count;
+        if (output == null || skip == count) return;
+        try {
+            output.write(buffer, offset + skip, count - skip);
+            contentHash.update(buffer, offset + skip, count - skip);
+            walkChunks(buffer, offset + skip, count - skip);
+            if (frameReceived) {
+                // Readers of the partial file only see what has been flushed
+                output.flush();
+                frameReceived = false;
+            }
+            written = position;
+        } catch (IOException e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            abandon();
+        }
+    }
+
+    private void walkChunks(byte[] buffer, int offset, int count) {
+        int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            if (skipRemaining > 0) {
+                int n = (int) Math.min(skipRemaining, end - i);
+                skipRemaining -= n;
+                i += n;
+                continue;
+            }
+            header[headerFilled++] = buffer[i++];
+            if (headerFilled < header.length) continue;
+            headerFilled = 0;
+            if (readingActl) {
+                isApng = readInt(header, 0) > 1;
+                readingActl = false;
+                skipRemaining = 4;
+                continue;
+            }
+            int length = readInt(header, 0);
+            int type = readInt(header, 4);
+            if (type == IDAT) sniffed = true;
+            // The frame before, if any, is complete
+            if (type == FCTL || type == IEND) frameReceived = true;
+            if (!sniffed && type == ACTL && length == 8) {
+                readingActl = true;
+            } else {
+                skipRemaining = (length & 0xFFFFFFFFL) + 4;
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+    }
+
+    private void commit() {
+        if (output == null) return;
+        try {
+            output.close();
+            output = null;
+            complete = true;
+            if (targetFile.exists() || !tempFile.renameTo(targetFile)) {
+                // Another load of the same image got there first
+                forgetPartialFile();
+                tempFile.delete();
+                finish(false);
+                return;
+            }
+            // Only now, so the image can always be found under one of its two names
+            forgetPartialFile();
+            if (enableVerboseLog) Slogger.v("Copy finished: %s", targetFile.getPath());
+            if (sniffed) AssistUtil.setApngVerdict(targetFile, isApng);
+            finish(true);
+        } catch (IOException e) {
+            if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            abandon();
+        }
+    }
+
+    private void abandon() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+            output = null;
+        }
+        if (tempFile != null) {
+            forgetPartialFile();
+            tempFile.delete();
+        }
+        finish(false);
+    }
+
+    private void forgetPartialFile() {
+        sPartialFiles.remove(targetFile.getAbsolutePath(), tempFile);
+        ApngIndex.evict(tempFile);
+    }
+
+    private void finish(boolean success) {
+        finished = true;
+        Callback finishedCallback = callback;
+        callback = null;
+        if (finishedCallback != null) finishedCallback.onCopyFinished(success);
+    }
+}
@@ -1,61 +1,41 @@
 package com.sneva.spng.assist;
 
 import static com.sneva.spng.ApngImageLoader.enableDebugLog;
-import static com.sneva.spng.ApngImageLoader.enableVerboseLog;
 
 import android.content.Context;
-import android.net.Uri;
 
 import androidx.annotation.NonNull;
 
 import com.sneva.spng.Slogger;
 
 import java.io.File;
-import java.security.MessageDigest;
 import java.util.Arrays;
-
-import ar.com.hjg.pngj.PngReaderApng;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class AssistUtil {
 
     public static final long MAX_SIZE = 5*1000*1000;
+    private static final int VERDICT_CACHE_CAPACITY = 64;
+
+    // Path to {length, last modified, 1 if APNG}
+    private static final Map<String, long[]> sApngVerdicts = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > VERDICT_CACHE_CAPACITY;
+        }
+    };
 
     private AssistUtil() {
 
     }
 
+    /**
+     * Evicts least recently used images from the working dir until it holds at most {@code maxSize} bytes,
+     * or {@link #MAX_SIZE} if {@code maxSize} is not positive. See {@link ApngDiskCache}.
+     */
     public static void checkCahceSize(File cacheDir, long maxSize) {
-        long cacheSize = getDirSize(cacheDir);
-        if (enableVerboseLog) Slogger.v("checkCacheSize: %d", cacheSize);
-        if (maxSize < 1 && cacheSize >= MAX_SIZE) {
-            cleanDir(cacheDir, cacheSize - MAX_SIZE);
-        } else if (maxSize > 0 && cacheSize >= maxSize) {
-            cleanDir(cacheDir, cacheSize - maxSize);
-        }
-    }
-
-    private static void cleanDir(File dir, long bytes) {
-        long bytesDeleted = 0;
-        File[] files = listFilesSortingByDate(dir);
-        for (File file : files) {
-            bytesDeleted += file.length();
-            boolean isSuccess = file.delete();
-            if (enableVerboseLog) Slogger.v("Delete(%s): %s", isSuccess ? "success" : "failed", file.getPath());
-            if (bytesDeleted >= bytes) {
-                break;
-            }
-        }
-    }
-
-    private static long getDirSize(File dir) {
-        long size = 0;
-        File[] files = listFilesSortingByDate(dir);
-        for (File file : files) {
-            if (file.isFile()) {
-                size += file.length();
-            }
-        }
-        return size;
+        ApngDiskCache.get(cacheDir).trimToSize(maxSize < 1 ? MAX_SIZE : maxSize);
     }
 
     public static File[] listFilesSortingByDate(File directory) {
@@ -74,16 +54,35 @@ public class AssistUtil {
         return files;
     }
 
+    /**
+     * Records whether a file is an APNG, found out while the file was written, so that {@link #isApng(File)}
+     * does not have to read it again.
+     */
+    public static void setApngVerdict(File file, boolean isApng) {
+        synchronized (sApngVerdicts) {
+            sApngVerdicts.put(file.getAbsolutePath(), new long[]{file.length(), file.lastModified(), isApng ? 1 : 0});
+        }
+    }
+
+    /**
+     * Sniffs the chunk headers before the image data, see {@link ApngIndex#sniffApng(File)}. The verdict is
+     * cached until the file changes.
+     */
     public static boolean isApng(File file) {
-        boolean isApng = false;
+        synchronized (sApngVerdicts) {
+            long[] verdict = sApngVerdicts.get(file.getAbsolutePath());
+            if (verdict != null && verdict[0] == file.length() && verdict[1] == file.lastModified()) {
+                return verdict[2] != 0;
+            }
+        }
+        boolean isApng;
         try {
-            PngReaderApng reader = new PngReaderApng(file);
-            reader.end();
-            int apngNumFrames = reader.getApngNumFrames();
-            isApng = apngNumFrames > 1;
+            isApng = ApngIndex.sniffApng(file);
         } catch (Exception e) {
             if (enableDebugLog) Slogger.w("Error: %s", e.toString());
+            return false;
         }
+        setApngVerdict(file, isApng);
         return isApng;
     }
 
@@ -102,39 +101,19 @@ public class AssistUtil {
         return workingDir;
     }
 
+    /**
+     * The working dir copy of an image. An image whose content was already stored for another URI resolves to
+     * that copy, see {@link ApngDiskCache#put(File, long)}.
+     */
     public static File getCopiedFile(Context context, String imageUri) {
-        String filename;
-        try {
-            filename = String.format("%s.png", md5(imageUri));
-        } catch (Exception e) {
-            filename = Uri.parse(imageUri).getLastPathSegment();
-        }
         File workingDir = getWorkingDir(context);
         File f = null;
         if (workingDir != null && workingDir.exists()) {
-            f = new File(workingDir, filename);
+            f = new File(workingDir, ApngDiskCache.get(workingDir).resolve(ApngCacheKey.getFileName(imageUri)));
         }
         return f;
     }
 
-    private static final char[] HEX_ARRAY = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-
-    private static String md5(String message) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("md5");
-        return bytesToHex(md.digest(message.getBytes("utf-8")));
-    }
-
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        int v;
-        for ( int j = 0; j < bytes.length; j++ ) {
-            v = bytes[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
-        }
-        return new String(hexChars);
-    }
-
     static class Pair implements Comparable<Pair> {
         public long t;
         public File f;
@@ -0,0 +1,115 @@
+package com.sneva.spng.assist;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Blend and dispose operations of {@link ApngCanvas}, on a plain JVM.
+ */
+public class ApngCanvasTest {
+
+    private static final int RED = 0xFFFF0000;
+    private static final int BLUE = 0xFF0000FF;
+    private static final int HALF_GREEN = 0x8000FF00;
+
+    private static PngChunkFCTL fctl(int x, int y, int width, int height, byte disposeOp, byte blendOp) {
+        PngChunkFCTL fctl = new PngChunkFCTL(new ImageInfo(4, 4, 8, true));
+        fctl.setxOff(x);
+        fctl.setyOff(y);
+        fctl.setWidth(width);
+        fctl.setHeight(height);
+        fctl.setDisposeOp(disposeOp);
+        fctl.setBlendOp(blendOp);
+        return fctl;
+    }
+
+    private static int[] fill(int count, int color) {
+        int[] pixels = new int[count];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    @Test
+    public void blendOver_mixesNonPremultipliedColors() {
+        assertEquals(RED, ApngCanvas.blendOver(RED, BLUE));
+        assertEquals(BLUE, ApngCanvas.blendOver(0, BLUE));
+        assertEquals(HALF_GREEN, ApngCanvas.blendOver(HALF_GREEN, 0));
+        assertEquals(0xFF00807F, ApngCanvas.blendOver(HALF_GREEN, BLUE));
+    }
+
+    @Test
+    public void compose_blendsRegionOverPreviousOutput() {
+        ApngCanvas canvas = new ApngCanvas(4, 4, 1);
+        canvas.reset();
+        PngChunkFCTL first = fctl(0, 0, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(null, first, fill(16, BLUE), 1);
+        PngChunkFCTL second = fctl(1, 1, 2, 2, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        canvas.compose(first, second, fill(4, HALF_GREEN), 1);
+        int[] pixels = canvas.getPixels();
+        assertEquals(BLUE, pixels[0]);
+        assertEquals(0xFF00807F, pixels[5]);
+        assertEquals(0xFF00807F, pixels[10]);
+        assertEquals(BLUE, pixels[15]);
+    }
+
+    @Test
+    public void compose_disposesToBackground() {
+        ApngCanvas canvas = new ApngCanvas(4, 4, 1);
+        canvas.reset();
+        PngChunkFCTL first = fctl(0, 0, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(null, first, fill(16, BLUE), 1);
+        PngChunkFCTL second = fctl(0, 0, 1, 1, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_OVER);
+        canvas.compose(first, second, fill(1, RED), 1);
+        assertEquals(RED, canvas.getPixels()[0]);
+        assertEquals(0, canvas.getPixels()[1]);
+    }
+
+    @Test
+    public void compose_disposesToPrevious() {
+        ApngCanvas canvas = new ApngCanvas(4, 4, 1);
+        canvas.reset();
+        PngChunkFCTL first = fctl(0, 0, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(null, first, fill(16, BLUE), 1);
+        PngChunkFCTL second = fctl(2, 2, 2, 2, PngChunkFCTL.APNG_DISPOSE_OP_PREVIOUS, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(first, second, fill(4, RED), 1);
+        assertEquals(RED, canvas.getPixels()[15]);
+        PngChunkFCTL third = fctl(0, 0, 1, 1, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(second, third, fill(1, RED), 1);
+        assertEquals(RED, canvas.getPixels()[0]);
+        assertEquals(BLUE, canvas.getPixels()[15]);
+    }
+
+    @Test
+    public void compose_downsamplesRegions() {
+        ApngCanvas canvas = new ApngCanvas(4, 4, 2);
+        assertEquals(2, canvas.getWidth());
+        assertEquals(2, canvas.getHeight());
+        canvas.reset();
+        PngChunkFCTL first = fctl(0, 0, 4, 4, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(null, first, fill(4, BLUE), 2);
+        // Covers no kept pixel: canvas pixel 0 stands for source pixel 0
+        PngChunkFCTL second = fctl(1, 1, 1, 1, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(first, second, new int[0], 2);
+        assertArrayEquals(new int[]{BLUE, BLUE, BLUE, BLUE}, canvas.getPixels());
+        // Sampled from its second column and row on, which land on source pixel 2
+        PngChunkFCTL third = fctl(1, 1, 3, 3, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        canvas.compose(second, third, fill(1, RED), 2);
+        assertArrayEquals(new int[]{BLUE, BLUE, BLUE, RED}, canvas.getPixels());
+    }
+
+    @Test
+    public void compose_scalesFramesDecodedAtFullSize() {
+        ApngCanvas canvas = new ApngCanvas(4, 4, 2);
+        canvas.reset();
+        PngChunkFCTL first = fctl(1, 0, 3, 1, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+        // Source pixel 2 is the frame's second pixel
+        canvas.compose(null, first, new int[]{RED, BLUE, RED}, 1);
+        assertArrayEquals(new int[]{0, BLUE, 0, 0}, canvas.getPixels());
+    }
+}
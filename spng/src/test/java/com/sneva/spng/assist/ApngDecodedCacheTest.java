@@ -0,0 +1,99 @@
+package com.sneva.spng.assist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of {@link ApngDecodedCache} files, on a plain JVM.
+ */
+public class ApngDecodedCacheTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot();
+        source = new File(dir, "source.png");
+        writeSource(new byte[]{1, 2, 3});
+    }
+
+    private void writeSource(byte[] content) throws IOException {
+        Files.write(source.toPath(), content);
+    }
+
+    private void writeFrames(int sampleSize) throws IOException {
+        ApngDecodedCache.Writer writer = new ApngDecodedCache.Writer(source, sampleSize, 3, MAX_SIZE);
+        // Frames may come in any order, frame 0 being optional
+        writer.append(2, new int[]{7, 8, 9, 10}, 3);
+        assertFalse(writer.isComplete());
+        writer.append(1, new int[]{0xFF00FF00, -1}, 2);
+        assertTrue(writer.isComplete());
+        writer.commit();
+    }
+
+    @Test
+    public void open_readsFramesBack() throws IOException {
+        writeFrames(2);
+        ApngDecodedCache cache = ApngDecodedCache.open(source, 2, 3);
+        assertNotNull(cache);
+        int[] argb = new int[3];
+        assertFalse(cache.read(0, argb));
+        assertTrue(cache.read(2, argb));
+        assertArrayEquals(new int[]{7, 8, 9}, argb);
+        assertTrue(cache.read(1, argb));
+        assertEquals(0xFF00FF00, argb[0]);
+        assertEquals(-1, argb[1]);
+    }
+
+    @Test
+    public void open_ignoresOtherSampleSizes() throws IOException {
+        writeFrames(1);
+        assertNull(ApngDecodedCache.open(source, 2, 3));
+        assertTrue(ApngDecodedCache.getFile(source).exists());
+    }
+
+    @Test
+    public void open_deletesFramesOfAReplacedSource() throws IOException {
+        writeFrames(1);
+        writeSource(new byte[]{1, 2, 3, 4});
+        assertNull(ApngDecodedCache.open(source, 1, 3));
+        assertFalse(ApngDecodedCache.getFile(source).exists());
+    }
+
+    @Test
+    public void abort_leavesOtherWritersOfTheSameSource() throws IOException {
+        ApngDecodedCache.Writer aborted = new ApngDecodedCache.Writer(source, 1, 2, MAX_SIZE);
+        ApngDecodedCache.Writer writer = new ApngDecodedCache.Writer(source, 1, 2, MAX_SIZE);
+        aborted.append(1, new int[]{1, 2}, 2);
+        writer.append(1, new int[]{3, 4}, 2);
+        aborted.abort();
+        writer.commit();
+        ApngDecodedCache cache = ApngDecodedCache.open(source, 1, 2);
+        assertNotNull(cache);
+        int[] argb = new int[2];
+        assertTrue(cache.read(1, argb));
+        assertArrayEquals(new int[]{3, 4}, argb);
+    }
+
+    @Test
+    public void append_abortsAboveMaxSize() throws IOException {
+        ApngDecodedCache.Writer writer = new ApngDecodedCache.Writer(source, 1, 2, 64);
+        writer.append(1, new int[32], 32);
+        assertFalse(writer.isComplete());
+        assertEquals(1, dir.list().length);
+    }
+}
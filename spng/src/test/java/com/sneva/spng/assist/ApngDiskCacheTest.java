@@ -0,0 +1,78 @@
+package com.sneva.spng.assist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Storing images served under several URIs once with {@link ApngDiskCache}, on a plain JVM.
+ */
+public class ApngDiskCacheTest {
+
+    private static final byte[] CONTENT = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    private File copy(String imageUri, byte[] content) throws IOException {
+        File file = new File(dir, ApngCacheKey.getFileName(imageUri));
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static long hash(byte[] content) {
+        ApngCacheKey.ContentHash contentHash = new ApngCacheKey.ContentHash();
+        contentHash.update(content, 0, content.length);
+        return contentHash.getValue();
+    }
+
+    @Test
+    public void put_storesSameContentOnce() throws IOException {
+        ApngDiskCache cache = ApngDiskCache.get(dir);
+        File first = copy("https://a.example/x.png", CONTENT);
+        File second = copy("https://b.example/y.png", CONTENT);
+        assertEquals(first, cache.put(first, hash(CONTENT)));
+        assertEquals(first, cache.put(second, hash(CONTENT)));
+        assertFalse(second.exists());
+        assertEquals(first.getName(), cache.resolve(second.getName()));
+        assertEquals(CONTENT.length, cache.getSize());
+    }
+
+    @Test
+    public void put_keepsDifferentContentWithTheSameHash() throws IOException {
+        ApngDiskCache cache = ApngDiskCache.get(dir);
+        byte[] other = CONTENT.clone();
+        other[4]++;
+        File first = copy("https://a.example/x.png", CONTENT);
+        File second = copy("https://b.example/y.png", other);
+        cache.put(first, hash(CONTENT));
+        assertEquals(second, cache.put(second, hash(CONTENT)));
+        assertTrue(second.exists());
+    }
+
+    @Test
+    public void trimToSize_dropsAliasesOfEvictedEntries() throws IOException {
+        ApngDiskCache cache = ApngDiskCache.get(dir);
+        File first = copy("https://a.example/x.png", CONTENT);
+        File second = copy("https://b.example/y.png", CONTENT);
+        cache.put(first, hash(CONTENT));
+        cache.put(second, hash(CONTENT));
+        cache.trimToSize(0);
+        assertFalse(first.exists());
+        assertEquals(second.getName(), cache.resolve(second.getName()));
+    }
+}
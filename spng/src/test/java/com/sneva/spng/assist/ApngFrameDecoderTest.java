@@ -0,0 +1,342 @@
+package com.sneva.spng.assist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.ImageLineInt;
+import ar.com.hjg.pngj.PngReader;
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+import ar.com.hjg.pngj.chunks.PngChunkPLTE;
+import ar.com.hjg.pngj.chunks.PngChunkTRNS;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding APNG frames with {@link ApngFrameDecoder}, on a plain JVM, against pngj decoding each frame on its own.
+ * The images are encoded here, cycling through the five filter types row by row.
+ */
+public class ApngFrameDecoderTest {
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int INDEXED = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGBA = 6;
+
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 11;
+    // The second frame, written as fdAT chunks, at an odd offset on the canvas
+    private static final int[] SUB_FRAME = {3, 5, 7, 5};
+
+    // Adam7 passes: x start, y start, x step, y step
+    private static final int[][] ADAM7 = {
+            {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * An image of random samples, with the transparent color of its tRNS chunk, if any, on every 7th pixel.
+     */
+    private static class Image {
+        final int colorType;
+        final int bitDepth;
+        final boolean interlaced;
+        final int channels;
+        byte[] plte;
+        byte[] trns;
+        int[] transparentColor;
+        final Random random = new Random(42);
+
+        Image(int colorType, int bitDepth, boolean interlaced) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.interlaced = interlaced;
+            channels = colorType == RGB ? 3 : colorType == GRAY_ALPHA ? 2 : colorType == RGBA ? 4 : 1;
+        }
+
+        Image palette(int size, int transparent) {
+            plte = new byte[size * 3];
+            random.nextBytes(plte);
+            trns = new byte[transparent];
+            random.nextBytes(trns);
+            return this;
+        }
+
+        Image transparentColor() {
+            transparentColor = new int[channels];
+            trns = new byte[channels * 2];
+            for (int c = 0; c < channels; c++) {
+                transparentColor[c] = random.nextInt(1 << bitDepth);
+                trns[c * 2] = (byte) (transparentColor[c] >> 8);
+                trns[c * 2 + 1] = (byte) transparentColor[c];
+            }
+            return this;
+        }
+
+        int[][] pixels(int width, int height) {
+            int max = colorType == INDEXED ? plte.length / 3 : 1 << bitDepth;
+            int[][] rows = new int[height][width * channels];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    for (int c = 0; c < channels; c++) {
+                        rows[y][x * channels + c] = transparentColor != null && (y * width + x) % 7 == 0
+                                ? transparentColor[c] : random.nextInt(max);
+                    }
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * The zlib stream of the filtered scanlines, passes one after the other if interlaced.
+         */
+        byte[] encode(int[][] pixels, int width, int height) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+            int bpp = Math.max(1, channels * bitDepth / 8);
+            for (int[] pass : interlaced ? ADAM7 : new int[][]{{0, 0, 1, 1}}) {
+                int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+                int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+                if (passWidth <= 0 || passHeight <= 0) continue;
+                byte[] prev = new byte[(passWidth * channels * bitDepth + 7) / 8];
+                for (int y = 0; y < passHeight; y++) {
+                    int[] samples = new int[passWidth * channels];
+                    int[] src = pixels[pass[1] + y * pass[3]];
+                    for (int x = 0; x < passWidth; x++) {
+                        System.arraycopy(src, (pass[0] + x * pass[2]) * channels, samples, x * channels, channels);
+                    }
+                    byte[] row = pack(samples);
+                    int filterType = y % 5;
+                    deflater.write(filterType);
+                    deflater.write(filter(filterType, row, prev, bpp));
+                    prev = row;
+                }
+            }
+            deflater.close();
+            return out.toByteArray();
+        }
+
+        private byte[] pack(int[] samples) {
+            byte[] row = new byte[(samples.length * bitDepth + 7) / 8];
+            for (int i = 0; i < samples.length; i++) {
+                if (bitDepth == 16) {
+                    row[i * 2] = (byte) (samples[i] >> 8);
+                    row[i * 2 + 1] = (byte) samples[i];
+                } else {
+                    int bit = i * bitDepth;
+                    row[bit >> 3] |= samples[i] << (8 - bitDepth - (bit & 7));
+                }
+            }
+            return row;
+        }
+
+        private static byte[] filter(int filterType, byte[] row, byte[] prev, int bpp) {
+            byte[] filtered = new byte[row.length];
+            for (int i = 0; i < row.length; i++) {
+                int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                int b = prev[i] & 0xFF;
+                int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                int predictor;
+                switch (filterType) {
+                    case 1:
+                        predictor = a;
+                        break;
+                    case 2:
+                        predictor = b;
+                        break;
+                    case 3:
+                        predictor = (a + b) >> 1;
+                        break;
+                    case 4:
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                        break;
+                    default:
+                        predictor = 0;
+                }
+                filtered[i] = (byte) (row[i] - predictor);
+            }
+            return filtered;
+        }
+
+        /**
+         * A PNG of the header chunks followed by one frame per data stream, the first one being the default image.
+         */
+        byte[] write(int[][] frames, byte[]... data) throws IOException {
+            PngBuilder png = new PngBuilder().ihdr(frames[0][2], frames[0][3], bitDepth, colorType, interlaced);
+            if (plte != null) png.chunk("PLTE", plte);
+            if (trns != null) png.chunk("tRNS", trns);
+            if (frames.length > 1) png.actl(frames.length, 0);
+            for (int i = 0; i < frames.length; i++) {
+                if (frames.length > 1) {
+                    png.fctl(frames[i][2], frames[i][3], frames[i][0], frames[i][1],
+                            PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+                }
+                if (i == 0) {
+                    png.idat(data[i]);
+                } else {
+                    png.fdat(data[i]);
+                }
+            }
+            return png.iend().toByteArray();
+        }
+    }
+
+    /**
+     * Decodes both frames of an APNG of {@code image} at every sample size, checking each against pngj.
+     */
+    private void assertDecodes(Image image) throws IOException {
+        int[][] frames = {{0, 0, WIDTH, HEIGHT}, SUB_FRAME};
+        int[][][] pixels = new int[frames.length][][];
+        byte[][] data = new byte[frames.length][];
+        for (int i = 0; i < frames.length; i++) {
+            pixels[i] = image.pixels(frames[i][2], frames[i][3]);
+            data[i] = image.encode(pixels[i], frames[i][2], frames[i][3]);
+        }
+        File dir = folder.newFolder();
+        File file = new File(dir, "image.png");
+        Files.write(file.toPath(), image.write(frames, data));
+        ApngFrameDecoder decoder = new ApngFrameDecoder(file);
+        assertEquals(frames.length, decoder.getNumFrames());
+
+        for (int i = 0; i < frames.length; i++) {
+            int width = frames[i][2];
+            int height = frames[i][3];
+            // The frame on its own, for pngj which only reads the default image
+            File frameFile = new File(dir, "frame" + i + ".png");
+            Files.write(frameFile.toPath(), image.write(new int[][]{{0, 0, width, height}}, data[i]));
+            int[] expected = readWithPngj(frameFile);
+
+            int[] argb = new int[width * height];
+            decoder.decodeFrame(i, argb);
+            assertArrayEquals(expected, argb);
+
+            for (int sampleSize = 2; sampleSize <= 4; sampleSize *= 2) {
+                int xPhase = ApngFrameDecoder.getSampledOffset(frames[i][0], sampleSize);
+                int yPhase = ApngFrameDecoder.getSampledOffset(frames[i][1], sampleSize);
+                int sampledWidth = ApngFrameDecoder.getSampledFrameSize(frames[i][0], width, sampleSize);
+                int sampledHeight = ApngFrameDecoder.getSampledFrameSize(frames[i][1], height, sampleSize);
+                int[] sampled = new int[sampledWidth * sampledHeight];
+                decoder.decodeFrame(i, sampled, sampleSize);
+                int[] expectedSampled = new int[sampled.length];
+                for (int y = 0; y < sampledHeight; y++) {
+                    for (int x = 0; x < sampledWidth; x++) {
+                        expectedSampled[y * sampledWidth + x] =
+                                expected[(yPhase + y * sampleSize) * width + xPhase + x * sampleSize];
+                    }
+                }
+                assertArrayEquals(expectedSampled, sampled);
+            }
+        }
+    }
+
+    /**
+     * The image as ARGB colors: pngj unfilters, deinterlaces and unpacks the samples, which are then cut to their
+     * high byte if 16 bits, scaled up if fewer than 8 bits, and made transparent as tRNS says.
+     */
+    private static int[] readWithPngj(File file) {
+        PngReader reader = new PngReader(file);
+        try {
+            ImageInfo info = reader.imgInfo;
+            PngChunkPLTE plte = reader.getMetadata().getPLTE();
+            PngChunkTRNS trns = reader.getMetadata().getTRNS();
+            int[] transparentColor = trns == null || info.indexed ? null
+                    : info.greyscale ? new int[]{trns.getGray()} : trns.getRGB();
+            int[] paletteAlpha = trns != null && info.indexed ? trns.getPalletteAlpha() : new int[0];
+            int[] argb = new int[info.cols * info.rows];
+            for (int y = 0; y < info.rows; y++) {
+                int[] samples = ((ImageLineInt) reader.readRow(y)).getScanline();
+                for (int x = 0; x < info.cols; x++) {
+                    int p = x * info.channels;
+                    int color;
+                    if (info.indexed) {
+                        int alpha = samples[p] < paletteAlpha.length ? paletteAlpha[samples[p]] : 0xFF;
+                        color = alpha << 24 | plte.getEntry(samples[p]);
+                    } else {
+                        int[] channels = new int[4];
+                        channels[3] = 0xFF;
+                        for (int c = 0; c < info.channels; c++) {
+                            channels[info.greyscale && c == 1 ? 3 : c] = to8Bits(samples[p + c], info.bitDepth);
+                        }
+                        if (info.greyscale) channels[1] = channels[2] = channels[0];
+                        if (transparentColor != null) {
+                            boolean transparent = true;
+                            for (int c = 0; c < info.channels; c++) {
+                                transparent &= samples[p + c] == transparentColor[c];
+                            }
+                            if (transparent) channels[3] = 0;
+                        }
+                        color = channels[3] << 24 | channels[0] << 16 | channels[1] << 8 | channels[2];
+                    }
+                    argb[y * info.cols + x] = color;
+                }
+            }
+            return argb;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int to8Bits(int sample, int bitDepth) {
+        return bitDepth == 16 ? sample >> 8 : sample * 255 / ((1 << bitDepth) - 1);
+    }
+
+    @Test
+    public void decodeFrame_rgbaAllFilterTypes() throws IOException {
+        assertDecodes(new Image(RGBA, 8, false));
+    }
+
+    @Test
+    public void decodeFrame_rgbWithTransparentColor() throws IOException {
+        assertDecodes(new Image(RGB, 8, false).transparentColor());
+    }
+
+    @Test
+    public void decodeFrame_grayBitDepths() throws IOException {
+        for (int bitDepth = 1; bitDepth <= 16; bitDepth *= 2) {
+            assertDecodes(new Image(GRAY, bitDepth, false).transparentColor());
+        }
+    }
+
+    @Test
+    public void decodeFrame_grayAlpha() throws IOException {
+        assertDecodes(new Image(GRAY_ALPHA, 8, false));
+    }
+
+    @Test
+    public void decodeFrame_paletteBitDepths() throws IOException {
+        for (int bitDepth = 1; bitDepth <= 8; bitDepth *= 2) {
+            // Fewer tRNS entries than colors, the others are opaque
+            int colors = 1 << bitDepth;
+            assertDecodes(new Image(INDEXED, bitDepth, false).palette(colors, (colors + 1) / 2));
+        }
+    }
+
+    @Test
+    public void decodeFrame_sixteenBits() throws IOException {
+        assertDecodes(new Image(RGBA, 16, false));
+        assertDecodes(new Image(GRAY_ALPHA, 16, false));
+        assertDecodes(new Image(RGB, 16, false).transparentColor());
+    }
+
+    @Test
+    public void decodeFrame_adam7() throws IOException {
+        assertDecodes(new Image(RGBA, 8, true));
+        assertDecodes(new Image(INDEXED, 2, true).palette(4, 4));
+        assertDecodes(new Image(RGB, 16, true).transparentColor());
+    }
+}
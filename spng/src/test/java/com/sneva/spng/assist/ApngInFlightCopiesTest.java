@@ -0,0 +1,174 @@
+package com.sneva.spng.assist;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloading an image once for concurrent loads with {@link ApngInFlightCopies}, on a plain JVM.
+ */
+public class ApngInFlightCopiesTest {
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[256 * 1024];
+    private final ExecutorService loaders = Executors.newFixedThreadPool(2);
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private ApngInFlightCopies copies;
+    private File targetFile;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(content);
+        targetFile = new File(folder.getRoot(), "image.png");
+        copies = new ApngInFlightCopies(TIMEOUT_MS, Runnable::run, (file, contentHash, success) -> {
+            if (success) finishedCount.incrementAndGet();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        loaders.shutdownNow();
+    }
+
+    /**
+     * Counts the streams opened, each blocking until {@code connected} is released.
+     */
+    private class Upstream implements ApngInFlightCopies.Source {
+        final AtomicInteger openCount = new AtomicInteger();
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        volatile boolean failing;
+
+        @Override
+        public File getTargetFile() {
+            return targetFile;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            openCount.incrementAndGet();
+            connecting.countDown();
+            try {
+                assertTrue(connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) throw new IOException("Connection refused");
+            return new SlowInputStream(content);
+        }
+    }
+
+    /**
+     * Hands out a few bytes at a time, like a network stream.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(byte[] buffer) {
+            super(buffer);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+
+    private Future<byte[]> load(ApngInFlightCopies.Source source) {
+        return loaders.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                InputStream in = copies.open(source);
+                try {
+                    return readFully(in);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void open_concurrentLoadsOpenTheSourceOnce() throws Exception {
+        Upstream upstream = new Upstream();
+        Future<byte[]> first = load(upstream);
+        assertTrue(upstream.connecting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Claimed while the first load is still connecting
+        Future<byte[]> second = load(upstream);
+        upstream.connected.countDown();
+
+        assertArrayEquals(content, first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(content, second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, upstream.openCount.get());
+        assertEquals(1, finishedCount.get());
+        assertEquals(0, copies.size());
+        assertEquals(content.length, targetFile.length());
+    }
+
+    @Test
+    public void open_readsTheCopyOnceInPlace() throws Exception {
+        Upstream upstream = new Upstream();
+        upstream.connected.countDown();
+        assertArrayEquals(content, load(upstream).get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(content, load(upstream).get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, upstream.openCount.get());
+    }
+
+    @Test
+    public void open_opensTheSourceWhenTheClaimingLoadFails() throws Exception {
+        Upstream upstream = new Upstream();
+        upstream.failing = true;
+        Future<byte[]> first = load(upstream);
+        assertTrue(upstream.connecting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Future<byte[]> second = load(upstream);
+        upstream.connected.countDown();
+
+        try {
+            first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected the connection to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // The second load claims the copy in turn and connects itself, it fails as well
+        try {
+            second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected the connection to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(2, upstream.openCount.get());
+        assertEquals(0, copies.size());
+        assertFalse(targetFile.exists());
+    }
+}
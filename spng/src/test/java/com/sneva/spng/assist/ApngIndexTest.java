@@ -0,0 +1,176 @@
+package com.sneva.spng.assist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Indexing APNGs with {@link ApngIndex}, complete or cut short as while being downloaded, on a plain JVM.
+ */
+public class ApngIndexTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    // Offsets of the chunks starting after each frame
+    private final List<Integer> frameEnds = new ArrayList<>();
+    private final List<byte[]> frameData = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    /**
+     * Three frames: the default image, a region, and a last frame split into two fdAT chunks.
+     */
+    private byte[] createApng() throws IOException {
+        byte[] first = PngBuilder.rgbaData(WIDTH, HEIGHT, 1);
+        byte[] second = PngBuilder.rgbaData(3, 2, 2);
+        byte[] third = PngBuilder.rgbaData(WIDTH, HEIGHT, 3);
+        int split = third.length / 2;
+        frameData.add(first);
+        frameData.add(second);
+        frameData.add(third);
+        PngBuilder png = new PngBuilder()
+                .ihdr(WIDTH, HEIGHT, 8, PngBuilder.RGBA, false)
+                .actl(3, 2)
+                .chunk("tEXt", "Comment\0test".getBytes("ISO-8859-1"))
+                .fctl(WIDTH, HEIGHT, 0, 0, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE)
+                .idat(first);
+        frameEnds.add(png.size());
+        png.fctl(3, 2, 4, 3, PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, PngChunkFCTL.APNG_BLEND_OP_OVER)
+                .fdat(second);
+        frameEnds.add(png.size());
+        png.fctl(WIDTH, HEIGHT, 0, 0, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE)
+                .fdat(Arrays.copyOfRange(third, 0, split))
+                .fdat(Arrays.copyOfRange(third, split, third.length));
+        frameEnds.add(png.size());
+        return png.iend().toByteArray();
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    /**
+     * The compressed data of a frame, read back from where the index says it is.
+     */
+    private static byte[] readData(byte[] bytes, ApngIndex.Frame frame) {
+        byte[] data = new byte[frame.getDataLength()];
+        int p = 0;
+        for (int i = 0; i < frame.getChunkCount(); i++) {
+            System.arraycopy(bytes, (int) frame.getChunkOffset(i), data, p, frame.getChunkLength(i));
+            p += frame.getChunkLength(i);
+        }
+        return data;
+    }
+
+    @Test
+    public void get_indexesEveryFrame() throws IOException {
+        byte[] bytes = createApng();
+        ApngIndex index = ApngIndex.get(write("a.png", bytes));
+        assertTrue(index.isApng());
+        assertTrue(index.isComplete());
+        assertEquals(WIDTH, index.getImageInfo().cols);
+        assertEquals(3, index.getNumFrames());
+        assertEquals(2, index.getNumPlays());
+        assertEquals(3, index.getFrameCount());
+        // The tEXt chunk, copied along with the frames when extracted
+        assertEquals(1, index.getHeaderChunks().size());
+
+        PngChunkFCTL fctl = index.getFrame(1).getFctl();
+        assertEquals(3, fctl.getWidth());
+        assertEquals(2, fctl.getHeight());
+        assertEquals(4, fctl.getxOff());
+        assertEquals(3, fctl.getyOff());
+        assertEquals(PngChunkFCTL.APNG_DISPOSE_OP_BACKGROUND, fctl.getDisposeOp());
+        assertEquals(2, index.getFrame(2).getChunkCount());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(frameData.get(i), readData(bytes, index.getFrame(i)));
+        }
+    }
+
+    @Test
+    public void get_leavesOutDefaultImageWithoutFctl() throws IOException {
+        byte[] frame = PngBuilder.rgbaData(WIDTH, HEIGHT, 1);
+        byte[] bytes = new PngBuilder()
+                .ihdr(WIDTH, HEIGHT, 8, PngBuilder.RGBA, false)
+                .actl(2, 0)
+                .idat(PngBuilder.rgbaData(WIDTH, HEIGHT, 2))
+                .fctl(WIDTH, HEIGHT, 0, 0, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE)
+                .fdat(frame)
+                .iend()
+                .toByteArray();
+        ApngIndex index = ApngIndex.get(write("a.png", bytes));
+        assertEquals(1, index.getFrameCount());
+        assertArrayEquals(frame, readData(bytes, index.getFrame(0)));
+    }
+
+    @Test
+    public void get_cachesUntilLengthOrModificationTimeChange() throws IOException {
+        byte[] bytes = createApng();
+        File file = write("a.png", bytes);
+        long lastModified = file.lastModified();
+        ApngIndex index = ApngIndex.get(file);
+        assertSame(index, ApngIndex.get(file));
+
+        // Another length, same time: bytes after IEND are not read
+        write("a.png", Arrays.copyOf(bytes, bytes.length + 1));
+        assertTrue(file.setLastModified(lastModified));
+        ApngIndex longer = ApngIndex.get(file);
+        assertNotSame(index, longer);
+        assertEquals(3, longer.getFrameCount());
+
+        // Same length, another time
+        assertTrue(file.setLastModified(lastModified - 10 * 1000));
+        ApngIndex touched = ApngIndex.get(file);
+        assertNotSame(longer, touched);
+
+        ApngIndex.evict(file);
+        assertNotSame(touched, ApngIndex.get(file));
+    }
+
+    @Test
+    public void get_keepsFramesCompleteInTruncatedCopies() throws IOException {
+        byte[] bytes = createApng();
+        File file = new File(dir, "a.png");
+        // From the end of IHDR on, the index can be built
+        for (int length = PngBuilder.SIGNATURE.length + 25; length <= bytes.length; length++) {
+            write("a.png", Arrays.copyOf(bytes, length));
+            ApngIndex index = ApngIndex.get(file);
+            // A frame is complete once the header of the chunk after it is there
+            int expected = 0;
+            while (expected < 3 && frameEnds.get(expected) + 8 <= length) expected++;
+            assertEquals("Frames of " + length + " bytes", expected, index.getFrameCount());
+            assertEquals(length >= bytes.length - 4, index.isComplete());
+            for (int i = 0; i < expected; i++) {
+                assertArrayEquals(frameData.get(i), readData(bytes, index.getFrame(i)));
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void get_failsWithoutHeader() throws IOException {
+        ApngIndex.get(write("a.png", Arrays.copyOf(createApng(), PngBuilder.SIGNATURE.length + 20)));
+    }
+}
@@ -0,0 +1,142 @@
+package com.sneva.spng.assist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import ar.com.hjg.pngj.chunks.PngChunkFCTL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Telling APNGs from static PNGs by their chunk headers, from a file with {@link ApngIndex#sniffApng(File)} and
+ * from a stream being copied with {@link ApngTeeInputStream}, on a plain JVM.
+ */
+public class ApngSniffTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private int fileCount;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    private static PngBuilder header() throws IOException {
+        return new PngBuilder()
+                .ihdr(WIDTH, HEIGHT, 8, PngBuilder.RGBA, false)
+                .chunk("tEXt", "Comment\0test".getBytes("ISO-8859-1"));
+    }
+
+    private static byte[] staticPng() throws IOException {
+        return header()
+                .idat(PngBuilder.rgbaData(WIDTH, HEIGHT, 1))
+                .iend()
+                .toByteArray();
+    }
+
+    private static byte[] apng(int numFrames) throws IOException {
+        PngBuilder png = header().actl(numFrames, 0);
+        for (int i = 0; i < numFrames; i++) {
+            png.fctl(WIDTH, HEIGHT, 0, 0, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE);
+            if (i == 0) {
+                png.idat(PngBuilder.rgbaData(WIDTH, HEIGHT, i));
+            } else {
+                png.fdat(PngBuilder.rgbaData(WIDTH, HEIGHT, i));
+            }
+        }
+        return png.iend().toByteArray();
+    }
+
+    /**
+     * An acTL chunk after the image data does not make an APNG.
+     */
+    private static byte[] actlAfterIdat() throws IOException {
+        return header()
+                .idat(PngBuilder.rgbaData(WIDTH, HEIGHT, 1))
+                .actl(2, 0)
+                .fctl(WIDTH, HEIGHT, 0, 0, PngChunkFCTL.APNG_DISPOSE_OP_NONE, PngChunkFCTL.APNG_BLEND_OP_SOURCE)
+                .fdat(PngBuilder.rgbaData(WIDTH, HEIGHT, 2))
+                .iend()
+                .toByteArray();
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = new File(dir, "image" + fileCount++ + ".png");
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    /**
+     * Copies {@code bytes} through a tee, {@code readSize} bytes at a time, so that chunk headers are split
+     * across reads.
+     */
+    private ApngTeeInputStream tee(byte[] bytes, int readSize) throws IOException {
+        ApngTeeInputStream tee = new ApngTeeInputStream(new ByteArrayInputStream(bytes),
+                new File(dir, "copy" + fileCount++ + ".png"));
+        byte[] buffer = new byte[readSize];
+        while (tee.read(buffer, 0, readSize) >= 0) {
+            // Read it all
+        }
+        tee.close();
+        return tee;
+    }
+
+    private void assertSniffed(boolean isApng, byte[] bytes) throws IOException {
+        assertEquals(isApng, ApngIndex.sniffApng(write(bytes)));
+        for (int readSize : new int[]{1, 7, 8 * 1024}) {
+            ApngTeeInputStream tee = tee(bytes, readSize);
+            assertTrue(tee.isSniffed());
+            assertEquals(isApng, tee.isApng());
+        }
+    }
+
+    @Test
+    public void sniff_staticPng() throws IOException {
+        assertSniffed(false, staticPng());
+    }
+
+    @Test
+    public void sniff_apng() throws IOException {
+        assertSniffed(true, apng(3));
+    }
+
+    @Test
+    public void sniff_singleFrameApng() throws IOException {
+        assertSniffed(false, apng(1));
+    }
+
+    @Test
+    public void sniff_actlAfterIdat() throws IOException {
+        assertSniffed(false, actlAfterIdat());
+    }
+
+    @Test
+    public void sniff_truncatedChunkHeader() throws IOException {
+        byte[] bytes = apng(3);
+        // IHDR and the first half of the tEXt chunk header
+        byte[] truncated = Arrays.copyOf(bytes, PngBuilder.SIGNATURE.length + 25 + 4);
+        assertFalse(ApngIndex.sniffApng(write(truncated)));
+        // The stream ends before the image data, so the tee cannot tell
+        assertFalse(tee(truncated, 1).isSniffed());
+    }
+
+    @Test(expected = EOFException.class)
+    public void sniffApng_failsOnTruncatedSignature() throws IOException {
+        ApngIndex.sniffApng(write(Arrays.copyOf(staticPng(), 5)));
+    }
+}
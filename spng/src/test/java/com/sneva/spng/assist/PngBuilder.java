@@ -0,0 +1,114 @@
+package com.sneva.spng.assist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes PNG and APNG files chunk by chunk, for tests. fcTL and fdAT chunks are numbered in the order written.
+ */
+class PngBuilder {
+
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    static final int RGBA = 6;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private int sequence;
+
+    PngBuilder() throws IOException {
+        out.write(SIGNATURE);
+    }
+
+    PngBuilder ihdr(int width, int height, int bitDepth, int colorType, boolean interlaced) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream chunk = new DataOutputStream(data);
+        chunk.writeInt(width);
+        chunk.writeInt(height);
+        chunk.write(new byte[]{(byte) bitDepth, (byte) colorType, 0, 0, (byte) (interlaced ? 1 : 0)});
+        return chunk("IHDR", data.toByteArray());
+    }
+
+    PngBuilder actl(int numFrames, int numPlays) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream chunk = new DataOutputStream(data);
+        chunk.writeInt(numFrames);
+        chunk.writeInt(numPlays);
+        return chunk("acTL", data.toByteArray());
+    }
+
+    /**
+     * A frame shown for a tenth of a second.
+     */
+    PngBuilder fctl(int width, int height, int xOff, int yOff, int disposeOp, int blendOp) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream chunk = new DataOutputStream(data);
+        chunk.writeInt(sequence++);
+        chunk.writeInt(width);
+        chunk.writeInt(height);
+        chunk.writeInt(xOff);
+        chunk.writeInt(yOff);
+        chunk.writeShort(1);
+        chunk.writeShort(10);
+        chunk.write(new byte[]{(byte) disposeOp, (byte) blendOp});
+        return chunk("fcTL", data.toByteArray());
+    }
+
+    PngBuilder idat(byte[] data) throws IOException {
+        return chunk("IDAT", data);
+    }
+
+    PngBuilder fdat(byte[] data) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream chunk = new DataOutputStream(payload);
+        chunk.writeInt(sequence++);
+        chunk.write(data);
+        return chunk("fdAT", payload.toByteArray());
+    }
+
+    PngBuilder iend() throws IOException {
+        return chunk("IEND", new byte[0]);
+    }
+
+    PngBuilder chunk(String type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type.getBytes("US-ASCII"));
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeBytes(type);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+        return this;
+    }
+
+    /**
+     * Number of bytes written so far, i.e. the offset of the next chunk.
+     */
+    int size() {
+        return bytes.size();
+    }
+
+    byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Image data of random 8 bit RGBA pixels, rows unfiltered.
+     */
+    static byte[] rgbaData(int width, int height, long seed) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(data);
+        byte[] row = new byte[width * 4];
+        for (int y = 0; y < height; y++) {
+            random.nextBytes(row);
+            deflater.write(0);
+            deflater.write(row);
+        }
+        deflater.close();
+        return data.toByteArray();
+    }
+}